@@ -0,0 +1,320 @@
+package com.xceptance.xlt.visualassertion;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.xceptance.xlt.api.engine.Session;
+import com.xceptance.xlt.api.engine.SessionShutdownListener;
+import com.xceptance.xlt.api.util.XltLogger;
+import com.xceptance.xlt.visualassertion.util.ArtifactWriter;
+
+/**
+ * Runs the comparisons of visual assertions in the background, so the test goes on with its next action while the
+ * screenshot is compared. The comparisons run on virtual threads if the JVM has them, otherwise on a pool with one
+ * thread per processor.
+ * <p>
+ * A failed comparison can't fail the action that took the screenshot anymore. Its failure is kept for the session and
+ * raised by the next visual assertion of the session, or by {@link VisualAssertionAwait}, which waits for all pending
+ * comparisons and should be called at the end of the test case. Additionally the session is marked as failed as soon
+ * as a comparison fails, so a difference found by the last assertions fails the test even if nobody waits for it. When
+ * the session ends, its pending comparisons are waited for and their images are written.
+ * <p>
+ * Each session has only a limited number of comparisons running, see {@link #setMaxPending(int)}. Further assertions
+ * wait until the oldest one is done, so a fast test can't pile up screenshots in memory.
+ */
+public class DeferredAssertions
+{
+    /**
+     * The part of an assertion that runs in the background
+     */
+    public interface Comparison
+    {
+        void run() throws IOException;
+    }
+
+    private static ExecutorService executor = null;
+
+    private static volatile int maxPending = 4;
+
+    private static final Map<Session, List<Future<Void>>> pendingComparisons = new WeakHashMap<>();
+
+    /**
+     * Sets the number of comparisons a session may have running at once
+     *
+     * @param comparisons
+     *            the number of comparisons, at least 1
+     */
+    public static void setMaxPending(final int comparisons)
+    {
+        maxPending = Math.max(1, comparisons);
+    }
+
+    /**
+     * Starts a comparison in the background. Waits first if the session has too many comparisons running.
+     *
+     * @param session
+     *            the session the comparison belongs to
+     * @param comparison
+     *            the comparison
+     */
+    public static void submit(final Session session, final Comparison comparison)
+    {
+        awaitCapacity(session);
+
+        final Future<Void> future = getExecutor().submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                // failed writes of the images belong to the session, not to the thread
+                ArtifactWriter.setOwner(session);
+                try
+                {
+                    comparison.run();
+                }
+                catch (final IOException | RuntimeException | Error e)
+                {
+                    // the test might end before the failure is raised
+                    markFailed(session);
+                    throw e;
+                }
+                finally
+                {
+                    ArtifactWriter.setOwner(null);
+                }
+                return null;
+            }
+        });
+
+        final boolean firstComparison;
+        synchronized (pendingComparisons)
+        {
+            List<Future<Void>> futures = pendingComparisons.get(session);
+            firstComparison = futures == null;
+            if (firstComparison)
+            {
+                futures = new ArrayList<>();
+                pendingComparisons.put(session, futures);
+            }
+            futures.add(future);
+        }
+
+        if (firstComparison)
+        {
+            session.addShutdownListener(new SessionShutdownListener()
+            {
+                @Override
+                public void shutdown()
+                {
+                    // the test is over, nothing can be thrown anymore, the comparison marked the session as failed
+                    try
+                    {
+                        raiseFailures(session, true);
+                    }
+                    catch (final AssertionError | RuntimeException e)
+                    {
+                        XltLogger.runTimeLogger.warn("Visual assertion failed after the test case ended", e);
+                    }
+
+                    // the images of the comparisons that just finished were queued after the flush of the session
+                    try
+                    {
+                        ArtifactWriter.flush(session);
+                    }
+                    catch (final RuntimeException e)
+                    {
+                        XltLogger.runTimeLogger.error("Failed to write the images of a visual assertion", e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Raises the first failure of the finished comparisons of a session, the failures of the others are attached to it
+     * as suppressed exceptions. Each failure is raised only once.
+     *
+     * @param session
+     *            the session
+     * @param wait
+     *            whether to wait for the comparisons that are still running
+     */
+    public static void raiseFailures(final Session session, final boolean wait)
+    {
+        final List<Future<Void>> finished = new ArrayList<>();
+        synchronized (pendingComparisons)
+        {
+            final List<Future<Void>> futures = pendingComparisons.get(session);
+            if (futures == null)
+            {
+                return;
+            }
+
+            final Iterator<Future<Void>> iterator = futures.iterator();
+            while (iterator.hasNext())
+            {
+                final Future<Void> future = iterator.next();
+                if (wait || future.isDone())
+                {
+                    finished.add(future);
+                    iterator.remove();
+                }
+            }
+        }
+
+        // wait for all of them, even if one failed already
+        final List<Throwable> failures = new ArrayList<>();
+        for (final Future<Void> future : finished)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (final ExecutionException e)
+            {
+                failures.add(e.getCause());
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (failures.isEmpty())
+        {
+            return;
+        }
+
+        Throwable failure = failures.get(0);
+        if (failure instanceof IOException)
+        {
+            failure = new AssertionError(MessageFormat.format("Failure during visual image assertion: {0}",
+                                                              failure.getMessage()), failure);
+        }
+        for (final Throwable other : failures.subList(1, failures.size()))
+        {
+            failure.addSuppressed(other);
+        }
+
+        if (failure instanceof AssertionError)
+        {
+            throw (AssertionError) failure;
+        }
+        if (failure instanceof RuntimeException)
+        {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error)
+        {
+            throw (Error) failure;
+        }
+    }
+
+    /**
+     * Waits until the session has fewer than the maximum number of comparisons running. Failures of the comparisons
+     * waited for are kept, they are raised as usual.
+     */
+    private static void awaitCapacity(final Session session)
+    {
+        while (true)
+        {
+            Future<Void> oldest = null;
+            synchronized (pendingComparisons)
+            {
+                final List<Future<Void>> futures = pendingComparisons.get(session);
+                if (futures == null)
+                {
+                    return;
+                }
+
+                int running = 0;
+                for (final Future<Void> future : futures)
+                {
+                    if (!future.isDone())
+                    {
+                        if (oldest == null)
+                        {
+                            oldest = future;
+                        }
+                        running++;
+                    }
+                }
+                if (running < maxPending)
+                {
+                    return;
+                }
+            }
+
+            try
+            {
+                oldest.get();
+            }
+            catch (final ExecutionException e)
+            {
+                // raised with the others
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Marks the session as failed. The public session API can only tell whether a session failed, the implementation
+     * of the engine can set it.
+     */
+    private static void markFailed(final Session session)
+    {
+        try
+        {
+            session.getClass().getMethod("setFailed", boolean.class).invoke(session, true);
+        }
+        catch (final ReflectiveOperationException e)
+        {
+            XltLogger.runTimeLogger.error("Session " + session.getID() + " could not be marked as failed", e);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            try
+            {
+                // virtual threads exist from Java 21 on, the module is compiled for older versions as well
+                executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (final ReflectiveOperationException e)
+            {
+                final AtomicInteger threadNumber = new AtomicInteger();
+                executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(final Runnable runnable)
+                    {
+                        final Thread thread = new Thread(runnable, "VisualAssertion-Comparison-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+
+        return executor;
+    }
+}
@@ -1,37 +1,68 @@
 package com.xceptance.xlt.visualassertion;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 
 import org.junit.Assert;
+import org.openqa.selenium.By;
 import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.NoSuchElementException;
 import org.openqa.selenium.OutputType;
 import org.openqa.selenium.TakesScreenshot;
 import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
 import org.openqa.selenium.remote.RemoteWebDriver;
 
+import com.xceptance.xlt.api.engine.CustomValue;
 import com.xceptance.xlt.api.engine.Session;
+import com.xceptance.xlt.api.engine.SessionShutdownListener;
 import com.xceptance.xlt.api.engine.scripting.WebDriverCustomModule;
 import com.xceptance.xlt.api.util.XltProperties;
+import com.xceptance.xlt.visualassertion.DeferredAssertions.Comparison;
 import com.xceptance.xlt.visualassertion.algorithm.ColorFuzzy;
 import com.xceptance.xlt.visualassertion.algorithm.ComparisonAlgorithm;
 import com.xceptance.xlt.visualassertion.algorithm.ExactMatch;
 import com.xceptance.xlt.visualassertion.algorithm.PixelFuzzy;
+import com.xceptance.xlt.visualassertion.algorithm.Pyramid;
+import com.xceptance.xlt.visualassertion.util.ArtifactWriter;
+import com.xceptance.xlt.visualassertion.util.BaselineCache;
+import com.xceptance.xlt.visualassertion.util.BaselineStore;
+import com.xceptance.xlt.visualassertion.util.BitMask;
+import com.xceptance.xlt.visualassertion.util.ComparisonPool;
+import com.xceptance.xlt.visualassertion.util.ComparisonScheduler;
+import com.xceptance.xlt.visualassertion.util.ElementRegion;
 import com.xceptance.xlt.visualassertion.util.ImageComparison;
+import com.xceptance.xlt.visualassertion.util.ImageRaster;
 import com.xceptance.xlt.visualassertion.util.MaskImage;
+import com.xceptance.xlt.visualassertion.util.PixelHash;
+import com.xceptance.xlt.visualassertion.util.PngEncoder;
+import com.xceptance.xlt.visualassertion.util.RasterPool;
 import com.xceptance.xlt.visualassertion.util.RectangleMask;
+import com.xceptance.xlt.visualassertion.util.TileHashGrid;
+import com.xceptance.xlt.visualassertion.util.TrainingAccumulator;
 
 /**
  * Module for the visual assertion of changes in a browser page. The module is called in an
  * action and takes a screenshot of the current page. This screenshot is then compared to already taken
  * reference images of the same page, or stored as reference image.
  *
+ * An optional first argument limits the assertion to one element of the page, for example "css=#header" or
+ * "id=summary". Only the area of the element is compared and saved, with its own reference image and mask.
+ *
  * The configurations for this module are done in the visualassertion.properties under /config
  * There are different algorithms that can be used for the comparison of the images and different ways to
  * visualize those differences for the evaluation.
@@ -41,14 +72,30 @@ public class VisualAssertion implements WebDriverCustomModule
 
     private final String PREFIX = "com.xceptance.xlt.visualassertion.";
 
+    // names of the values in the custom values section of the load test report
+    private final String CUSTOM_VALUE_QUEUE_LENGTH = "VisualAssertion.ComparisonQueueLength";
+
+    private final String CUSTOM_VALUE_WAIT_TIME = "VisualAssertion.ComparisonWaitTime";
+
     /**
      * Counter for the current screenshots
      */
     private static ThreadLocal<Integer> indexCounter = new ThreadLocal<>();
 
+    /**
+     * Sessions that wait for the background writer when they end
+     */
+    private static final Set<Session> flushingSessions = Collections.newSetFromMap(new WeakHashMap<Session, Boolean>());
+
     // the property defaults
     private final int WAITINGTIME = 300;
 
+    private final String CAPTURE_MODE = "fixed";
+
+    private final int CAPTURE_INTERVAL = 100;
+
+    private final int CAPTURE_TIMEOUT = 3000;
+
     private final String ALL = "all";
 
     private final int MARK_BLOCKSIZE_X = 10;
@@ -57,12 +104,46 @@ public class VisualAssertion implements WebDriverCustomModule
 
     private final int FUZZY_BLOCKSIZE_XY = 10;
 
+    private final int FUZZY_PARALLELISM = 1;
+
+    private final int FUZZY_STRIDE = 0;
+
+    private final boolean PYRAMID = false;
+
+    private final int BASELINE_CACHE_SIZE = 0;
+
+    private final int RASTER_POOL_SIZE = 0;
+
+    private final int COMPARISON_MAX_CONCURRENT = 0;
+
+    private final int COMPARISON_MEMORY_BUDGET = 0;
+
+    private final boolean BASELINE_HASH = false;
+
+    private final boolean BASELINE_TILES = false;
+
+    private final boolean ARTIFACTS_ASYNC = false;
+
+    private final int ARTIFACTS_QUEUE_SIZE = 8;
+
+    private final String PNG_ENCODER = "fast";
+
+    private final String PNG_PRESET = "default";
+
+    private final int PNG_LEVEL = -1;
+
+    private final String PNG_FILTER = "";
+
     private final String COLOR_TOLERANCE = "0.1";
 
     private final String PIXEL_TOLERANCE = "0.2";
 
     private final boolean ATTEMPT_TO_CLOSE_MASK = false;
 
+    private final String MASK_TRAINING_THRESHOLD = "0";
+
+    private final int MASK_TRAINING_FLUSH_INTERVAL = 1;
+
     private final int MASK_CLOSE_GAP_WIDTH = 5;
 
     private final int MASK_CLOSE_GAP_HEIGHT = 5;
@@ -71,6 +152,14 @@ public class VisualAssertion implements WebDriverCustomModule
 
     private final boolean CREATE_DIFFERENCE_IMAGE = true;
 
+    private final boolean CREATE_MARKED_IMAGE = true;
+
+    private final boolean FAIL_FAST = false;
+
+    private final boolean DEFERRED = false;
+
+    private final int DEFERRED_MAX_PENDING = 4;
+
     private final boolean TRAININGSMODE = false;
 
     private final String RESULT_DIRECTORY = "results" + File.separator + "visualassertion";
@@ -89,6 +178,14 @@ public class VisualAssertion implements WebDriverCustomModule
 
     public final String PROPERTY_WAITING_TIME = PREFIX + "waitingTime";
 
+    public final String PROPERTY_CAPTURE_MODE = PREFIX + "capture.mode";
+    public final String CAPTURE_MODE_FIXED = "fixed";
+    public final String CAPTURE_MODE_STABLE = "stable";
+
+    public final String PROPERTY_CAPTURE_INTERVAL = PREFIX + "capture.interval";
+
+    public final String PROPERTY_CAPTURE_TIMEOUT = PREFIX + "capture.timeout";
+
     public final String PROPERTY_MARK_BLOCKSIZE_X = PREFIX + "mark.blocksize.x";
     public final String PROPERTY_MARK_BLOCKSIZE_Y = PREFIX + "mark.blocksize.y";
     public final String PROPERTY_MARK_TYPE = PREFIX + "mark.type";
@@ -107,12 +204,56 @@ public class VisualAssertion implements WebDriverCustomModule
 
     public final String PROPERTY_FUZZY_BLOCKSIZE_XY = PREFIX + "fuzzy.blocksize.xy";
 
+    public final String PROPERTY_FUZZY_PARALLELISM = PREFIX + "fuzzy.parallelism";
+
+    public final String PROPERTY_FUZZY_STRIDE = PREFIX + "fuzzy.stride";
+
+    public final String PROPERTY_PYRAMID = PREFIX + "pyramid";
+
+    public final String PROPERTY_BASELINE_CACHE_SIZE = PREFIX + "baseline.cache.size";
+
+    public final String PROPERTY_RASTER_POOL_SIZE = PREFIX + "raster.pool.size";
+
+    public final String PROPERTY_COMPARISON_MAX_CONCURRENT = PREFIX + "comparison.maxConcurrent";
+
+    public final String PROPERTY_COMPARISON_MEMORY_BUDGET = PREFIX + "comparison.memoryBudget";
+
+    public final String PROPERTY_BASELINE_HASH = PREFIX + "baseline.hash";
+
+    public final String PROPERTY_BASELINE_TILES = PREFIX + "baseline.tiles";
+
+    public final String PROPERTY_ARTIFACTS_ASYNC = PREFIX + "artifacts.async";
+
+    public final String PROPERTY_ARTIFACTS_QUEUE_SIZE = PREFIX + "artifacts.queueSize";
+
+    public final String PROPERTY_PNG_ENCODER = PREFIX + "png.encoder";
+
+    public final String PROPERTY_PNG_PRESET = PREFIX + "png.preset";
+
+    public final String PROPERTY_PNG_LEVEL = PREFIX + "png.level";
+
+    public final String PROPERTY_PNG_FILTER = PREFIX + "png.filter";
+
+    public final String PNG_ENCODER_IMAGEIO = "imageio";
+
     public final String PROPERTY_CREATE_DIFFERENCEIMAGE = PREFIX + "onFailure.createDifferenceImage";
 
+    public final String PROPERTY_CREATE_MARKEDIMAGE = PREFIX + "onFailure.createMarkedImage";
+
+    public final String PROPERTY_FAIL_FAST = PREFIX + "failFast";
+
+    public final String PROPERTY_DEFERRED = PREFIX + "deferred";
+
+    public final String PROPERTY_DEFERRED_MAX_PENDING = PREFIX + "deferred.maxPending";
+
     public final String PROPERTY_TRAININGSMODE = PREFIX + "trainingsMode";
 
     public final String PROPERTY_MASK_CLOSE = PREFIX + "mask.close";
 
+    public final String PROPERTY_MASK_TRAINING_THRESHOLD = PREFIX + "mask.training.threshold";
+
+    public final String PROPERTY_MASK_TRAINING_FLUSH_INTERVAL = PREFIX + "mask.training.flushInterval";
+
     public final String PROPERTY_MASK_CLOSE_GAP_WIDTH = PREFIX + "mask.close.width";
 
     public final String PROPERTY_MASK_CLOSE_GAP_HEIGHT = PREFIX + "mask.close.height";
@@ -140,6 +281,12 @@ public class VisualAssertion implements WebDriverCustomModule
         // Wait time for the page to load completely
         final int waitTime = props.getProperty(PROPERTY_WAITING_TIME, WAITINGTIME);
 
+        // Whether the screenshot is taken after the wait time or as soon as the page doesn't change anymore
+        final String captureMode = props.getProperty(PROPERTY_CAPTURE_MODE, CAPTURE_MODE).trim().toLowerCase();
+        // Time between two screenshots and the maximum time to wait for a stable page
+        final int captureInterval = props.getProperty(PROPERTY_CAPTURE_INTERVAL, CAPTURE_INTERVAL);
+        final int captureTimeout = props.getProperty(PROPERTY_CAPTURE_TIMEOUT, CAPTURE_TIMEOUT);
+
         // Block size for the visual marking of differences in the snapshot
         final int markBlockSizeX = props.getProperty(PROPERTY_MARK_BLOCKSIZE_X, MARK_BLOCKSIZE_X);
         final int markBlockSizeY = props.getProperty(PROPERTY_MARK_BLOCKSIZE_Y, MARK_BLOCKSIZE_Y);
@@ -149,6 +296,43 @@ public class VisualAssertion implements WebDriverCustomModule
         // fuzzyBlockLength, fuzzyness parameter
         final int fuzzyBlockLength = props.getProperty(PROPERTY_FUZZY_BLOCKSIZE_XY, FUZZY_BLOCKSIZE_XY);
 
+        // Distance between two fuzzy blocks, 0 places them side by side
+        final int fuzzyStride = props.getProperty(PROPERTY_FUZZY_STRIDE, FUZZY_STRIDE);
+
+        // Flag whether areas without differences are sorted out on a downscaled difference first
+        final boolean pyramid = props.getProperty(PROPERTY_PYRAMID, PYRAMID);
+
+        // Number of threads a fuzzy comparison is spread on
+        final int fuzzyParallelism = props.getProperty(PROPERTY_FUZZY_PARALLELISM, FUZZY_PARALLELISM);
+
+        // Megabytes of decoded reference images and masks kept in memory
+        final int baselineCacheSize = props.getProperty(PROPERTY_BASELINE_CACHE_SIZE, BASELINE_CACHE_SIZE);
+
+        // Megabytes of pixel buffers kept for reuse by the next comparisons
+        final int rasterPoolSize = props.getProperty(PROPERTY_RASTER_POOL_SIZE, RASTER_POOL_SIZE);
+
+        // Number of comparisons that run at once in the process and the megabytes they may use together
+        final int comparisonMaxConcurrent = props.getProperty(PROPERTY_COMPARISON_MAX_CONCURRENT, COMPARISON_MAX_CONCURRENT);
+        final int comparisonMemoryBudget = props.getProperty(PROPERTY_COMPARISON_MEMORY_BUDGET, COMPARISON_MEMORY_BUDGET);
+
+        // Flag whether identical screenshots are recognized by the hash of their pixels
+        final boolean baselineHash = props.getProperty(PROPERTY_BASELINE_HASH, BASELINE_HASH);
+
+        // Flag whether unchanged tiles are recognized by their hashes and skipped by the comparison
+        final boolean baselineTiles = props.getProperty(PROPERTY_BASELINE_TILES, BASELINE_TILES);
+
+        // Flag whether images are written in the background
+        final boolean artifactsAsync = props.getProperty(PROPERTY_ARTIFACTS_ASYNC, ARTIFACTS_ASYNC);
+
+        // Number of images that can wait to be written before the test has to wait
+        final int artifactsQueueSize = props.getProperty(PROPERTY_ARTIFACTS_QUEUE_SIZE, ARTIFACTS_QUEUE_SIZE);
+
+        // PNG encoder for the written images, its settings and optional overrides of them
+        final String pngEncoder = props.getProperty(PROPERTY_PNG_ENCODER, PNG_ENCODER).trim().toLowerCase();
+        final String pngPreset = props.getProperty(PROPERTY_PNG_PRESET, PNG_PRESET);
+        final int pngLevel = props.getProperty(PROPERTY_PNG_LEVEL, PNG_LEVEL);
+        final String pngFilter = props.getProperty(PROPERTY_PNG_FILTER, PNG_FILTER).trim().toUpperCase();
+
         // Tolerance value for differences in color
         final String colorToleranceValue = props.getProperty(PROPERTY_COLOR_TOLERANCE, COLOR_TOLERANCE);
         final double colorTolerance = Double.parseDouble(colorToleranceValue);
@@ -169,9 +353,28 @@ public class VisualAssertion implements WebDriverCustomModule
         // Height of the mask close
         final int closeMaskHeight = props.getProperty(PROPERTY_MASK_CLOSE_GAP_HEIGHT, MASK_CLOSE_GAP_HEIGHT);
 
+        // Share of the training runs an area has to be different in more often to be masked
+        final String trainingThresholdValue = props.getProperty(PROPERTY_MASK_TRAINING_THRESHOLD, MASK_TRAINING_THRESHOLD);
+        final double trainingThreshold = Double.parseDouble(trainingThresholdValue);
+
+        // Number of training runs after which the mask is written
+        final int trainingFlushInterval = props.getProperty(PROPERTY_MASK_TRAINING_FLUSH_INTERVAL, MASK_TRAINING_FLUSH_INTERVAL);
+
         // Flag whether a pixel difference image should be created
         final boolean createDifferenceImage = props.getProperty(PROPERTY_CREATE_DIFFERENCEIMAGE, CREATE_DIFFERENCE_IMAGE);
 
+        // Flag whether an image with the marked differences should be created
+        final boolean createMarkedImage = props.getProperty(PROPERTY_CREATE_MARKEDIMAGE, CREATE_MARKED_IMAGE);
+
+        // Flag whether the comparison stops at the first difference
+        final boolean failFast = props.getProperty(PROPERTY_FAIL_FAST, FAIL_FAST);
+
+        // Flag whether the comparison runs in the background while the test goes on
+        final boolean deferred = props.getProperty(PROPERTY_DEFERRED, DEFERRED);
+
+        // Number of comparisons a session may have running in the background
+        final int deferredMaxPending = props.getProperty(PROPERTY_DEFERRED_MAX_PENDING, DEFERRED_MAX_PENDING);
+
         // Selector for the algorithm that shall be used
         final String algorithmString = props.getProperty(PROPERTY_ALGORITHM, ALGORITHM).trim().toUpperCase();
 
@@ -179,6 +382,23 @@ public class VisualAssertion implements WebDriverCustomModule
         final String id = props.getProperty(PROPERTY_ID, ALL);
 
 
+        ComparisonPool.setParallelism(fuzzyParallelism);
+        BaselineCache.setMaxBytes(baselineCacheSize * 1024L * 1024L);
+        RasterPool.setMaxBytes(rasterPoolSize * 1024L * 1024L);
+        ComparisonScheduler.setLimits(comparisonMaxConcurrent, comparisonMemoryBudget * 1024L * 1024L);
+        DeferredAssertions.setMaxPending(deferredMaxPending);
+        ArtifactWriter.setAsync(artifactsAsync, artifactsQueueSize);
+        ArtifactWriter.setEncoder(createPngEncoder(pngEncoder, pngPreset, pngLevel, pngFilter));
+        ArtifactWriter.setOwner(Session.getCurrent());
+        if (artifactsAsync)
+        {
+            flushArtifactsOnShutdown(Session.getCurrent());
+        }
+
+        // Differences found by earlier assertions in the background fail the test now
+        DeferredAssertions.raiseFailures(Session.getCurrent(), false);
+
+
         //--------------------------------------------------------------------------------
         // Get the current environment
         //--------------------------------------------------------------------------------
@@ -193,6 +413,10 @@ public class VisualAssertion implements WebDriverCustomModule
         // Get the name of the action that called the visual assertion
         final String currentActionName = Session.getCurrent().getCurrentActionName();
 
+        // Optional locator of the element the assertion is limited to
+        final String elementLocator = arguments != null && arguments.length > 0 && arguments[0] != null
+                                      && arguments[0].trim().length() > 0 ? arguments[0].trim() : null;
+
 
         //--------------------------------------------------------------------------------
         // Initialize the directory and file paths, create the directories if necessary
@@ -218,14 +442,19 @@ public class VisualAssertion implements WebDriverCustomModule
         // Update the index
         indexCounter.set(index);
 
-        // Name of the image file for the screenshot
-        final String screenshotName = String.format("%03d", index) + "-" + currentActionName;
+        // Name of the image file for the screenshot, element screenshots get their own files
+        final String screenshotName = String.format("%03d", index) + "-" + currentActionName
+                                      + (elementLocator == null ? "" : "-" + toFileName(elementLocator));
 
         // Directory for the reference images
         final File baselineDirectory = new File(targetDirectory, RESULT_DIRECTORY_BASELINE);
         baselineDirectory.mkdirs();
         // Path of the reference image for this assertion
         final File referenceImageFile = new File(baselineDirectory, screenshotName + ".png");
+        // Path of the pixel hash of the reference image
+        final File referenceHashFile = new File(baselineDirectory, screenshotName + ".hash");
+        // Path of the tile hashes of the reference image
+        final File referenceTilesFile = new File(baselineDirectory, screenshotName + ".tiles");
 
 
         // Directory for the results of the current test run
@@ -248,16 +477,17 @@ public class VisualAssertion implements WebDriverCustomModule
 
 
         //--------------------------------------------------------------------------------
-        // Wait for the page to fully load, so that a correct screenshot can be taken
+        // Wait for the page to fully load, so that a correct screenshot can be taken. In
+        // stable mode the screenshots themselves show when the page is loaded.
         //--------------------------------------------------------------------------------
 
-        try
+        if (CAPTURE_MODE_FIXED.equals(captureMode))
         {
-            TimeUnit.MILLISECONDS.sleep(waitTime);
+            sleep(waitTime);
         }
-        catch (final InterruptedException e)
+        else if (!CAPTURE_MODE_STABLE.equals(captureMode))
         {
-            Thread.currentThread().interrupt();
+            Assert.fail(MessageFormat.format("Capture mode '{0}' is not supported.", captureMode));
         }
 
 
@@ -267,149 +497,474 @@ public class VisualAssertion implements WebDriverCustomModule
 
         try
         {
-            final BufferedImage screenshot = takeScreenshot(webdriver);
-            if (screenshot == null)
+            final byte[] screenshotBytes = CAPTURE_MODE_STABLE.equals(captureMode)
+                ? takeStableScreenshot(webdriver, captureInterval, captureTimeout)
+                : takeScreenshot(webdriver);
+            if (screenshotBytes == null)
             {
                 // TODO Has this to be handled in a different way?
                 // webdriver cannot take the screenshot -> RETURN
                 return;
             }
-            // Save the screenshot
-            writeImage(screenshot, currentScreenShotFile);
 
-            // If there's no reference screenshot yet -> save screenshot as reference image in baseline
-            if (!referenceImageFile.isFile())
+            // Cut out the element, the rest of the page is neither compared nor saved
+            final BufferedImage elementScreenshot = elementLocator != null
+                ? cropToElement(webdriver, elementLocator, decodeScreenshot(screenshotBytes))
+                : null;
+            if (elementScreenshot != null)
             {
-                writeImage(screenshot, referenceImageFile);
-                // There is no reference for the comparison -> RETURN
-                return;
+                ArtifactWriter.write(elementScreenshot, currentScreenShotFile);
+            }
+            else
+            {
+                // Save the screenshot as the driver encoded it
+                ArtifactWriter.write(screenshotBytes, currentScreenShotFile);
             }
 
-            // Load the reference image
-            final BufferedImage reference = ImageIO.read(referenceImageFile);
+            // Everything from here on only works on the images, so it can run in the background
+            final Comparison comparison = new Comparison()
+            {
+                @Override
+                public void run() throws IOException
+                {
+                    // Files that are read must be completely written
+                    ArtifactWriter.awaitFile(referenceImageFile);
+                    ArtifactWriter.awaitFile(maskImageFile);
+
+                    // If there's no reference screenshot yet -> save screenshot as reference image in baseline. Only one user
+                    // creates it, the others wait for it and compare against it.
+                    final boolean baselineCreated = elementScreenshot != null
+                        ? BaselineStore.createIfAbsent(referenceImageFile, elementScreenshot)
+                        : BaselineStore.createIfAbsent(referenceImageFile, screenshotBytes);
+                    if (baselineCreated)
+                    {
+                        // There is no reference for the comparison -> RETURN
+                        return;
+                    }
+
+                    // Only decode the screenshot now that it is needed for the comparison. Convert it once, the hash and the
+                    // comparison both work on the plain pixels. The converted copy is released when the comparison is done.
+                    final BufferedImage screenshot = elementScreenshot != null ? elementScreenshot
+                                                                               : ImageRaster.of(decodeScreenshot(screenshotBytes)).getImage();
+
+                    try
+                    {
+                        // If the unmasked pixels are identical to the reference image -> RETURN
+                        String screenshotHash = null;
+                        BitMask hashMask = null;
+                        if (baselineHash && !trainingsModeEnabled)
+                        {
+                            ArtifactWriter.awaitFile(referenceHashFile);
+
+                            hashMask = maskImageFile.exists() ? BaselineCache.getMask(maskImageFile) : null;
+                            screenshotHash = PixelHash.compute(screenshot, hashMask);
+
+                            if (screenshotHash.equals(PixelHash.read(referenceHashFile, referenceImageFile, maskImageFile)))
+                            {
+                                return;
+                            }
+                        }
+
+                        // Load the reference image, it is shared with other threads and must not be modified
+                        final BufferedImage reference = BaselineCache.getImage(referenceImageFile);
+
+                        if (screenshotHash != null)
+                        {
+                            // The stored hash is missing or outdated, so the reference image is hashed with the same mask
+                            final String referenceHash = PixelHash.compute(reference, hashMask);
+                            ArtifactWriter.write(PixelHash.createHashFile(referenceHash, referenceImageFile, maskImageFile), referenceHashFile);
+
+                            if (screenshotHash.equals(referenceHash))
+                            {
+                                return;
+                            }
+                        }
+
+                        // Mask for the image comparison
+                        // If no mask exists yet, one user creates a blank one, the others load it
+                        BitMask mask = null;
+                        if (!maskImageFile.exists())
+                        {
+                            final MaskImage blankMask = new MaskImage(reference);
+                            if (BaselineStore.createIfAbsent(maskImageFile, blankMask.getMask()))
+                            {
+                                mask = blankMask.getBitMask();
+                            }
+                        }
+                        if (mask == null)
+                        {
+                            mask = BaselineCache.getMask(maskImageFile);
+                        }
+
+
+                        //--------------------------------------------------------------------------------
+                        // Initialize the configured algorithm
+                        //--------------------------------------------------------------------------------
+
+                        ComparisonAlgorithm algorithm = null;
+                        switch (algorithmString)
+                        {
+                        case PROPERTY_ALGORITHM_COLORFUZZY:
+                            algorithm = new ColorFuzzy(colorTolerance);
+                            break;
+                        case PROPERTY_ALGORITHM_EXACTMATCH:
+                            algorithm = new ExactMatch();
+                            break;
+                        case PROPERTY_ALGORITHM_FUZZY:
+                            algorithm = new PixelFuzzy(pixelTolerance, colorTolerance, fuzzyBlockLength, fuzzyStride);
+                            break;
+                        }
+
+                        if (pyramid && algorithm != null)
+                        {
+                            algorithm = new Pyramid(algorithm);
+                        }
+
+
+                        //--------------------------------------------------------------------------------
+                        // If training is enabled adjust the mask, else compare the screenshot to the
+                        // reference image
+                        //--------------------------------------------------------------------------------
+
+                        if (trainingsModeEnabled)
+                        {
+                            // The differences of all runs for this mask are collected in memory, closing the mask covers a
+                            // bigger area
+                            final TrainingAccumulator accumulator = TrainingAccumulator.get(maskImageFile, reference,
+                                                                                            new RectangleMask(markBlockSizeX, markBlockSizeY),
+                                                                                            trainingThreshold,
+                                                                                            closeMask ? closeMaskWidth : 0,
+                                                                                            closeMask ? closeMaskHeight : 0);
+
+                            // Count the current differences between the reference image and screenshot
+                            accumulator.add(reference, screenshot, algorithm);
+
+                            // Save the trained mask once enough runs are collected, the rest is saved at the end
+                            if (accumulator.getPendingIterations() >= trainingFlushInterval)
+                            {
+                                accumulator.flush();
+                            }
+                        }
+                        else
+                        {
+                            // Tiles that are identical in both images are masked, so only the changed ones are compared
+                            BitMask comparisonMask = mask;
+                            if (baselineTiles && colorTolerance >= 0)
+                            {
+                                ArtifactWriter.awaitFile(referenceTilesFile);
+
+                                TileHashGrid referenceTiles = TileHashGrid.read(referenceTilesFile, referenceImageFile, maskImageFile);
+                                if (referenceTiles == null)
+                                {
+                                    referenceTiles = TileHashGrid.compute(reference, mask);
+                                    ArtifactWriter.write(referenceTiles.createGridFile(referenceImageFile, maskImageFile), referenceTilesFile);
+                                }
+
+                                comparisonMask = referenceTiles.maskEqualTiles(mask, TileHashGrid.compute(screenshot, mask));
+                            }
+
+                            // Initialize the comparator
+                            final ImageComparison comparator = new ImageComparison(reference, failFast);
+
+                            // Result of the comparison whether the images are similar
+                            final boolean result = comparator.isEqual(screenshot, comparisonMask, algorithm);
+
+                            // If the two images don't match..
+                            if (!result)
+                            {
+                                if (createDifferenceImage)
+                                {
+                                    // Create a image of the pixel differences and save it
+                                    ArtifactWriter.writeAndRelease(comparator.getDifferenceImage(), differenceImageFile);
+                                }
+
+                                if (createMarkedImage)
+                                {
+                                    BufferedImage markedImage = null;
+                                    switch (markType) {
+                                    case MARK_WITH_A_MARKER:
+                                        // Highlight the differences in the image with red and yellow
+                                        markedImage = comparator.getMarkedImageWithAMarker(markBlockSizeX, markBlockSizeY);
+                                        break;
+                                    case MARK_WITH_BOXES:
+                                        // Surround the differences with red boxes
+                                        markedImage = comparator.getMarkedImageWithBoxes(markBlockSizeX, markBlockSizeY);
+                                        break;
+                                    default:
+                                        // break
+                                        Assert.fail(MessageFormat.format("Mark type '{0}' is not supported.", markType));
+                                        break;
+                                    }
+
+                                    // Save the marked image
+                                    ArtifactWriter.writeAndRelease(markedImage, markedImageFile);
+                                }
+                            }
+
+                            // The padded copies of the comparison are not needed anymore
+                            comparator.release();
+
+                            // Assert the result of the comparison
+                            Assert.assertTrue(MessageFormat.format("Website does not match the reference screenshot: {0} ", currentActionName), result);
+                        }
+                    }
+                    finally
+                    {
+                        // The converted screenshot isn't needed anymore, its buffer is used for the next one
+                        RasterPool.release(screenshot);
+                    }
+                }
+            };
+
+            // The comparison waits until the process has the threads and memory for it
+            final long comparisonBytes = elementScreenshot != null
+                ? ComparisonScheduler.estimateBytes(elementScreenshot.getWidth(), elementScreenshot.getHeight())
+                : estimateComparisonBytes(screenshotBytes);
+            final Session session = Session.getCurrent();
+            final Comparison scheduledComparison = new Comparison()
+            {
+                @Override
+                public void run() throws IOException
+                {
+                    final int queueLength = ComparisonScheduler.getQueueLength();
+                    final long waitTime = ComparisonScheduler.acquire(comparisonBytes);
+
+                    // The report shows how long comparisons had to wait, to find out how many users an agent can take
+                    reportCustomValue(session, CUSTOM_VALUE_QUEUE_LENGTH, queueLength);
+                    reportCustomValue(session, CUSTOM_VALUE_WAIT_TIME, waitTime);
+
+                    try
+                    {
+                        comparison.run();
+                    }
+                    finally
+                    {
+                        ComparisonScheduler.release(comparisonBytes);
+                    }
+                }
+            };
 
-            // Mask for the image comparison
-            MaskImage mask;
-            // If a mask already exists load it, else create a new one
-            if (maskImageFile.exists())
+            if (deferred)
             {
-                mask = new MaskImage(reference, ImageIO.read(maskImageFile));
+                // Failures are raised by the next assertion of the session or by VisualAssertionAwait
+                DeferredAssertions.submit(session, scheduledComparison);
             }
             else
             {
-                mask = new MaskImage(reference);
-                writeImage(mask.getMask(), maskImageFile);
+                scheduledComparison.run();
             }
+        }
+        catch (final IOException e)
+        {
+            Assert.fail(MessageFormat.format("Failure during visual image assertion: {0}", e.getMessage()));
+        }
+    }
+
+    /**
+     * Estimates the memory the comparison of a screenshot needs from the image size in its PNG header, without
+     * decoding it
+     *
+     * @param screenshotBytes
+     *            the PNG data
+     * @return the estimated bytes, 0 if the data is no PNG
+     */
+    private long estimateComparisonBytes(final byte[] screenshotBytes)
+    {
+        // the signature is followed by the IHDR chunk, which starts with the width and the height
+        if (screenshotBytes.length < 24 || (screenshotBytes[1] & 0xFF) != 'P' || (screenshotBytes[2] & 0xFF) != 'N'
+            || (screenshotBytes[3] & 0xFF) != 'G')
+        {
+            return 0;
+        }
 
+        final ByteBuffer header = ByteBuffer.wrap(screenshotBytes, 16, 8);
+        return ComparisonScheduler.estimateBytes(header.getInt(), header.getInt());
+    }
 
-            //--------------------------------------------------------------------------------
-            // Initialize the configured algorithm
-            //--------------------------------------------------------------------------------
+    /**
+     * Decodes the PNG data of a screenshot
+     *
+     * @param screenshotBytes
+     *            the PNG data
+     * @return the image
+     * @throws IOException
+     *             if the data is not a readable image
+     */
+    private BufferedImage decodeScreenshot(final byte[] screenshotBytes) throws IOException
+    {
+        final BufferedImage screenshot = ImageIO.read(new ByteArrayInputStream(screenshotBytes));
+        if (screenshot == null)
+        {
+            throw new IOException("The screenshot is not a readable image");
+        }
 
-            ComparisonAlgorithm algorithm = null;
-            switch (algorithmString)
-            {
-            case PROPERTY_ALGORITHM_COLORFUZZY:
-                algorithm = new ColorFuzzy(colorTolerance);
-                break;
-            case PROPERTY_ALGORITHM_EXACTMATCH:
-                algorithm = new ExactMatch();
-                break;
-            case PROPERTY_ALGORITHM_FUZZY:
-                algorithm = new PixelFuzzy(pixelTolerance, colorTolerance, fuzzyBlockLength);
-                break;
-            }
+        return screenshot;
+    }
 
+    /**
+     * Copies the part of the screenshot that shows the given element. The element is measured by the browser, see
+     * {@link ElementRegion}, and its bounding rectangle is cut to the screenshot. Fails if nothing of the element is
+     * visible.
+     *
+     * @param webDriver
+     *            the web driver to look up the element
+     * @param locator
+     *            the locator of the element
+     * @param screenshot
+     *            the screenshot of the page
+     * @return a TYPE_INT_ARGB image of the element
+     */
+    private BufferedImage cropToElement(final WebDriver webDriver, final String locator, final BufferedImage screenshot)
+    {
+        WebElement element = null;
+        try
+        {
+            element = webDriver.findElement(toBy(locator));
+        }
+        catch (final NoSuchElementException e)
+        {
+            Assert.fail(MessageFormat.format("Element ''{0}'' for the visual assertion was not found.", locator));
+        }
 
-            //--------------------------------------------------------------------------------
-            // If training is enabled adjust the mask, else compare the screenshot to the
-            // reference image
-            //--------------------------------------------------------------------------------
+        if (!(webDriver instanceof JavascriptExecutor))
+        {
+            Assert.fail(MessageFormat.format("Element ''{0}'' for the visual assertion can't be measured by this driver.",
+                                             locator));
+        }
 
-            if (trainingsModeEnabled)
-            {
-                // Train the mask to take the current difference between the reference image and screenshot into account
-                mask.train(screenshot, algorithm, new RectangleMask(markBlockSizeX, markBlockSizeY));
+        final Object measured = ((JavascriptExecutor) webDriver).executeScript(ElementRegion.SCRIPT, element);
+        final Rectangle region = ElementRegion.fromScriptResult(measured instanceof List ? (List<?>) measured : null)
+            .toScreenshotRegion(screenshot.getWidth(), screenshot.getHeight());
+        if (region.isEmpty())
+        {
+            Assert.fail(MessageFormat.format("Element ''{0}'' for the visual assertion is not on the screenshot.", locator));
+        }
 
-                // Close the mask to cover a bigger area
-                if (closeMask)
-                {
-                    mask.closeMask(closeMaskWidth, closeMaskHeight);
-                }
+        return ImageRaster.copyOf(screenshot, region).getImage();
+    }
 
-                // Save the trained mask
-                writeImage(mask.getMask(), maskImageFile);
-            }
-            else
-            {
-                // Initialize the comparator
-                final ImageComparison comparator = new ImageComparison(reference);
+    /**
+     * Turns a locator into a selenium lookup. Supported are the prefixes "id=", "name=", "css=", "xpath=" and "link=",
+     * a locator starting with "//" is an XPath, everything else a CSS selector.
+     *
+     * @param locator
+     *            the locator
+     * @return the lookup for the element
+     */
+    private By toBy(final String locator)
+    {
+        if (locator.startsWith("id="))
+        {
+            return By.id(locator.substring(3));
+        }
+        if (locator.startsWith("name="))
+        {
+            return By.name(locator.substring(5));
+        }
+        if (locator.startsWith("css="))
+        {
+            return By.cssSelector(locator.substring(4));
+        }
+        if (locator.startsWith("xpath="))
+        {
+            return By.xpath(locator.substring(6));
+        }
+        if (locator.startsWith("link="))
+        {
+            return By.linkText(locator.substring(5));
+        }
+        if (locator.startsWith("//"))
+        {
+            return By.xpath(locator);
+        }
 
-                // Result of the comparison whether the images are similar
-                final boolean result = comparator.isEqual(screenshot, mask, algorithm);
+        return By.cssSelector(locator);
+    }
 
-                // If the two images don't match..
-                if (!result)
-                {
-                    if (createDifferenceImage)
-                    {
-                        // Create a image of the pixel differences and save it
-                        writeImage(comparator.getDifferenceImage(), differenceImageFile);
-                    }
+    /**
+     * Turns a locator into a part of a file name. Long locators are shortened, their hash keeps them apart.
+     *
+     * @param locator
+     *            the locator
+     * @return the locator with only letters, digits, '.', '_' and '-'
+     */
+    private String toFileName(final String locator)
+    {
+        final String name = locator.replaceAll("[^A-Za-z0-9._-]+", "_");
+        if (name.length() <= 40)
+        {
+            return name;
+        }
 
-                    BufferedImage markedImage = null;
-                    switch (markType) {
-                    case MARK_WITH_A_MARKER:
-                        // Highlight the differences in the image with red and yellow
-                        markedImage = comparator.getMarkedImageWithAMarker(markBlockSizeX, markBlockSizeY);
-                        break;
-                    case MARK_WITH_BOXES:
-                        // Surround the differences with red boxes
-                        markedImage = comparator.getMarkedImageWithBoxes(markBlockSizeX, markBlockSizeY);
-                        break;
-                    default:
-                        // break
-                        Assert.fail(MessageFormat.format("Mark type '{0}' is not supported.", markType));
-                        break;
-                    }
+        return name.substring(0, 40) + "_" + Integer.toHexString(locator.hashCode());
+    }
 
-                    // Save the marked image
-                    writeImage(markedImage, markedImageFile);
-                }
+    /**
+     * Takes screenshots until two in a row are identical, so the page doesn't change anymore. If the page doesn't
+     * settle within the timeout, the last screenshot is used.
+     *
+     * @param webDriver
+     *            the web driver to use
+     * @param interval
+     *            milliseconds between two screenshots
+     * @param timeout
+     *            milliseconds after which the last screenshot is taken as it is
+     * @return the PNG data of the screenshot if the webdriver supports taking screenshots, null otherwise
+     */
+    private byte[] takeStableScreenshot(final WebDriver webDriver, final int interval, final int timeout)
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        byte[] previous = takeScreenshot(webDriver);
+        while (previous != null && System.nanoTime() - deadline < 0 && !Thread.currentThread().isInterrupted())
+        {
+            sleep(interval);
 
-                // Assert the result of the comparison
-                Assert.assertTrue(MessageFormat.format("Website does not match the reference screenshot: {0} ", currentActionName), result);
+            final byte[] current = takeScreenshot(webDriver);
+            // the driver encodes the same pixels to the same bytes
+            if (current == null || Arrays.equals(previous, current))
+            {
+                return current;
             }
+            previous = current;
         }
-        catch (final IOException e)
+
+        return previous;
+    }
+
+    /**
+     * Waits without throwing an exception, an interrupt is kept for the caller
+     *
+     * @param milliseconds
+     *            the time to wait
+     */
+    private void sleep(final int milliseconds)
+    {
+        try
         {
-            Assert.fail(MessageFormat.format("Failure during visual image assertion: {0}", e.getMessage()));
+            TimeUnit.MILLISECONDS.sleep(milliseconds);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
      * Takes a screenshot if the underlying web driver instance is capable of doing it. Fails with a message only in
      * case the webdriver cannot take screenshots. Avoids issue when certain drivers are used.
+     * <p>
+     * The PNG data is returned as the driver encoded it, so it can be written without decoding and encoding it again.
      * 
      * @param webDriver
      *            the web driver to use
-     * @return {@link BufferedImage} if the webdriver supports taking screenshots, null otherwise
-     * @throws RuntimeException
-     *             In case the files cannot be written
+     * @return the PNG data of the screenshot if the webdriver supports taking screenshots, null otherwise
      */
-    private BufferedImage takeScreenshot(final WebDriver webDriver)
+    private byte[] takeScreenshot(final WebDriver webDriver)
     {
         if (webDriver instanceof TakesScreenshot)
         {
-            final byte[] bytes = ((TakesScreenshot) webDriver).getScreenshotAs(OutputType.BYTES);
-            try
-            {
-                return ImageIO.read(new ByteArrayInputStream(bytes));
-            }
-            catch (final IOException e)
-            {
-                throw new RuntimeException(e);
-            }
+            return ((TakesScreenshot) webDriver).getScreenshotAs(OutputType.BYTES);
         }
         else
         {
@@ -448,19 +1003,78 @@ public class VisualAssertion implements WebDriverCustomModule
     }
 
     /**
-     * Write the image into the filepath given by file
-     * @param image that should be saved
-     * @param file path where the image shall be saved
+     * Creates the encoder for written images from the preset and its overrides
+     * 
+     * @param encoderName
+     *            "imageio" to use the default ImageIO writer, anything else uses the own encoder
+     * @param preset
+     *            name of the preset, see {@link PngEncoder#forPreset(String)}
+     * @param level
+     *            deflate level from 0 to 9, a negative value keeps the level of the preset
+     * @param filter
+     *            name of a {@link PngEncoder.Filter}, an empty value keeps the filter of the preset
+     * @return the encoder or null if ImageIO shall be used
      */
-    private void writeImage(final BufferedImage image, final File file)
+    private PngEncoder createPngEncoder(final String encoderName, final String preset, final int level, final String filter)
     {
+        if (PNG_ENCODER_IMAGEIO.equals(encoderName))
+        {
+            return null;
+        }
+
         try
         {
-            ImageIO.write(image, "PNG", file);
+            final PngEncoder presetEncoder = PngEncoder.forPreset(preset);
+            return new PngEncoder(level < 0 ? presetEncoder.getCompressionLevel() : level,
+                                  filter.isEmpty() ? presetEncoder.getFilter() : PngEncoder.Filter.valueOf(filter));
         }
-        catch (final IOException e)
+        catch (final IllegalArgumentException e)
+        {
+            Assert.fail(MessageFormat.format("Invalid PNG encoder settings: {0}", e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Adds a value to the custom values of the load test report
+     *
+     * @param session
+     *            the session the value belongs to
+     * @param name
+     *            the name of the value
+     * @param value
+     *            the value
+     */
+    private void reportCustomValue(final Session session, final String name, final double value)
+    {
+        final CustomValue customValue = new CustomValue(name);
+        customValue.setValue(value);
+        session.getDataManager().logDataRecord(customValue);
+    }
+
+    /**
+     * Makes sure all images are written before the session ends and its results are finalized
+     * 
+     * @param session
+     *            the current session
+     */
+    private void flushArtifactsOnShutdown(final Session session)
+    {
+        synchronized (flushingSessions)
         {
-            throw new RuntimeException(e);
+            if (!flushingSessions.add(session))
+            {
+                return;
+            }
         }
+
+        session.addShutdownListener(new SessionShutdownListener()
+        {
+            @Override
+            public void shutdown()
+            {
+                ArtifactWriter.flush(session);
+            }
+        });
     }
 }
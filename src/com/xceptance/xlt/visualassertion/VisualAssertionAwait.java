@@ -0,0 +1,20 @@
+package com.xceptance.xlt.visualassertion;
+
+import org.openqa.selenium.WebDriver;
+
+import com.xceptance.xlt.api.engine.Session;
+import com.xceptance.xlt.api.engine.scripting.WebDriverCustomModule;
+
+/**
+ * Module that waits for the visual assertions of the current session that are still compared in the background and
+ * fails with the first difference they found. Call it at the end of a test case if the visual assertions are deferred,
+ * otherwise the failures of the last assertions are not reported. Without deferred assertions it does nothing.
+ */
+public class VisualAssertionAwait implements WebDriverCustomModule
+{
+    @Override
+    public void execute(final WebDriver webdriver, final String... arguments)
+    {
+        DeferredAssertions.raiseFailures(Session.getCurrent(), true);
+    }
+}
@@ -10,7 +10,17 @@ public class ComparisonAlgorithm
 
     int fuzzyBlockSize;
 
+    int fuzzyBlockStride;
+
+    private ComparisonAlgorithm baseAlgorithm;
+
     protected ComparisonAlgorithm(ComparisonType type, double pixelTolerance, double colorTolerance, int fuzzyBlockSize)
+    {
+        this(type, pixelTolerance, colorTolerance, fuzzyBlockSize, fuzzyBlockSize);
+    }
+
+    protected ComparisonAlgorithm(ComparisonType type, double pixelTolerance, double colorTolerance, int fuzzyBlockSize,
+                                  int fuzzyBlockStride)
     {
         this.type = type;
         switch (type)
@@ -23,11 +33,33 @@ public class ComparisonAlgorithm
                 this.colorTolerance = colorTolerance;
                 this.pixelTolerance = pixelTolerance;
                 this.fuzzyBlockSize = fuzzyBlockSize;
+                this.fuzzyBlockStride = fuzzyBlockStride;
                 break;
 
             case EXACTMATCH:
                 break;
+
+            case PYRAMID:
+                throw new IllegalArgumentException("A pyramid comparison needs an algorithm to wrap");
+        }
+    }
+
+    /**
+     * Creates a pyramid comparison, which takes its settings from the wrapped algorithm
+     */
+    protected ComparisonAlgorithm(ComparisonAlgorithm baseAlgorithm)
+    {
+        if (baseAlgorithm.getType() == ComparisonType.PYRAMID)
+        {
+            throw new IllegalArgumentException("A pyramid comparison cannot wrap another one");
         }
+
+        this.type = ComparisonType.PYRAMID;
+        this.baseAlgorithm = baseAlgorithm;
+        this.colorTolerance = baseAlgorithm.colorTolerance;
+        this.pixelTolerance = baseAlgorithm.pixelTolerance;
+        this.fuzzyBlockSize = baseAlgorithm.fuzzyBlockSize;
+        this.fuzzyBlockStride = baseAlgorithm.fuzzyBlockStride;
     }
 
     public ComparisonType getType()
@@ -40,6 +72,23 @@ public class ComparisonAlgorithm
         return fuzzyBlockSize;
     }
 
+    /**
+     * The distance between the start of two neighboring fuzzy blocks. If it is smaller than the block size, the blocks
+     * overlap.
+     */
+    public int getFuzzyBlockStride()
+    {
+        return fuzzyBlockStride;
+    }
+
+    /**
+     * The algorithm a pyramid comparison uses at full resolution, null for all other types
+     */
+    public ComparisonAlgorithm getBaseAlgorithm()
+    {
+        return baseAlgorithm;
+    }
+
     public double getColorTolerance()
     {
         return colorTolerance;
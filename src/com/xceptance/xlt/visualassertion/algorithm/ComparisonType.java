@@ -4,5 +4,6 @@ public enum ComparisonType
 {
  EXACTMATCH,
  COLORFUZZY,
- PIXELFUZZY
+ PIXELFUZZY,
+ PYRAMID
 }
@@ -7,6 +7,11 @@ public class PixelFuzzy extends ComparisonAlgorithm
         super(ComparisonType.PIXELFUZZY, pixelTolerance, colorTolerance, fuzzyBlockSize);
     }
 
+    public PixelFuzzy(double pixelTolerance, double colorTolerance, int fuzzyBlockSize, int fuzzyBlockStride)
+    {
+        super(ComparisonType.PIXELFUZZY, pixelTolerance, colorTolerance, fuzzyBlockSize, fuzzyBlockStride);
+    }
+
     public PixelFuzzy()
     {
         super(ComparisonType.PIXELFUZZY, 0.1, 0.1, 10);
@@ -0,0 +1,14 @@
+package com.xceptance.xlt.visualassertion.algorithm;
+
+/**
+ * Runs another algorithm coarse to fine. Areas without any difference above the color tolerance are found on a
+ * downscaled difference of both images first, only the rest is compared by the wrapped algorithm. The result is the
+ * same as that of the wrapped algorithm alone.
+ */
+public class Pyramid extends ComparisonAlgorithm
+{
+    public Pyramid(ComparisonAlgorithm baseAlgorithm)
+    {
+        super(baseAlgorithm);
+    }
+}
@@ -0,0 +1,480 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.imageio.ImageIO;
+
+import com.xceptance.xlt.api.util.XltLogger;
+
+/**
+ * Writes screenshots, marked and difference images, baselines and masks. If it is switched to asynchronous mode, the
+ * files are encoded and written by one background thread, so the test thread only hands them over. The queue is
+ * bounded, so a test thread waits if the writer falls behind instead of piling up images in memory.
+ * <p>
+ * Files are written in the order they were handed over. Before a file is read again, {@link #awaitFile(File)} makes
+ * sure that all pending writes to it are done. {@link #flush()} waits until the files of the current owner are
+ * written, everything still queued is written when the JVM shuts down.
+ * <p>
+ * A failed write is reported by the next call of write or flush of the owner that handed the file over, usually the
+ * session of the test, see {@link #setOwner(Object)}. So a failure never fails the test of another user that happens to
+ * write next. Failures nobody asked for anymore are logged when the JVM shuts down.
+ * <p>
+ * Every file is written to a temporary file first, which then replaces the target in one step.
+ */
+public class ArtifactWriter
+{
+    // guards all state, a lock instead of a monitor, so virtual threads that wait don't keep their carrier thread
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    // signalled whenever a write is done
+    private static final Condition written = lock.newCondition();
+
+    private static BlockingQueue<Artifact> queue = null;
+
+    private static boolean async = false;
+
+    // number of queued writes per file
+    private static final Map<File, Integer> pendingFiles = new HashMap<>();
+
+    // number of queued writes per owner, so an owner only waits for its own files
+    private static final Map<Object, Integer> pendingOwners = new WeakHashMap<>();
+
+    // the first failed write per owner, the map takes null as key for files without an owner
+    private static final Map<Object, IOException> failures = new WeakHashMap<>();
+
+    // the owner of the files handed over by the current thread
+    private static final ThreadLocal<Object> owner = new ThreadLocal<>();
+
+    private static volatile PngEncoder encoder = null;
+
+    /**
+     * Switches between writing on the calling thread and writing in the background. The background thread is
+     * started with the first switch to asynchronous mode and keeps running, the queue size of later calls is ignored.
+     *
+     * @param asynchronous
+     *            true to write files in the background
+     * @param queueSize
+     *            number of files that can wait to be written before the calling thread has to wait
+     */
+    public static void setAsync(final boolean asynchronous, final int queueSize)
+    {
+        lock.lock();
+        try
+        {
+            async = asynchronous;
+
+            if (async && queue == null)
+            {
+                queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+
+                final Thread writerThread = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        processQueue();
+                    }
+                }, "VisualAssertion-ArtifactWriter");
+                writerThread.setDaemon(true);
+                writerThread.start();
+
+                // daemon threads keep running while the shutdown hooks are executed
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        awaitPendingFiles();
+                        logFailures();
+                    }
+                }, "VisualAssertion-ArtifactWriter-Flush"));
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the owner of the files the current thread hands over from now on. A failed write is only reported to the
+     * same owner.
+     *
+     * @param fileOwner
+     *            the owner, usually the current session, null for none
+     */
+    public static void setOwner(final Object fileOwner)
+    {
+        if (fileOwner == null)
+        {
+            owner.remove();
+        }
+        else
+        {
+            owner.set(fileOwner);
+        }
+    }
+
+    /**
+     * Sets the encoder for images that are written from now on
+     *
+     * @param pngEncoder
+     *            the encoder, null to write the images with ImageIO
+     */
+    public static void setEncoder(final PngEncoder pngEncoder)
+    {
+        encoder = pngEncoder;
+    }
+
+    /**
+     * Writes an image as PNG. In asynchronous mode the image must not be modified afterwards.
+     *
+     * @param image
+     *            the image to write
+     * @param file
+     *            the target file
+     */
+    public static void write(final BufferedImage image, final File file)
+    {
+        submit(new Artifact(file, image, null, encoder, false));
+    }
+
+    /**
+     * Writes an image as PNG and gives its buffer back to the {@link RasterPool} once it is written. The image must not
+     * be used afterwards.
+     *
+     * @param image
+     *            the image to write
+     * @param file
+     *            the target file
+     */
+    public static void writeAndRelease(final BufferedImage image, final File file)
+    {
+        submit(new Artifact(file, image, null, encoder, true));
+    }
+
+    /**
+     * Writes already encoded data. In asynchronous mode the array must not be modified afterwards.
+     *
+     * @param bytes
+     *            the data to write
+     * @param file
+     *            the target file
+     */
+    public static void write(final byte[] bytes, final File file)
+    {
+        submit(new Artifact(file, null, bytes, null, false));
+    }
+
+    /**
+     * Waits until all files the current owner handed over so far are written and reports a failed write of it
+     */
+    public static void flush()
+    {
+        flush(owner.get());
+    }
+
+    /**
+     * Waits until all files the given owner handed over so far are written and reports a failed write of it. Files
+     * of other owners that are queued meanwhile are not waited for.
+     *
+     * @param fileOwner
+     *            the owner to wait for, for example a session that ends
+     */
+    public static void flush(final Object fileOwner)
+    {
+        lock.lock();
+        try
+        {
+            while (pendingOwners.containsKey(fileOwner))
+            {
+                // keeps the interrupt status, a write is done soon
+                written.awaitUninterruptibly();
+            }
+
+            throwFailure(fileOwner);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static void awaitPendingFiles()
+    {
+        lock.lock();
+        try
+        {
+            while (!pendingFiles.isEmpty())
+            {
+                // keeps the interrupt status, a write is done soon
+                written.awaitUninterruptibly();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until all pending writes to the given file are done, so it can be read
+     *
+     * @param file
+     *            the file that is about to be read
+     */
+    public static void awaitFile(final File file)
+    {
+        lock.lock();
+        try
+        {
+            while (pendingFiles.containsKey(file))
+            {
+                // keeps the interrupt status, a write is done soon
+                written.awaitUninterruptibly();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static void submit(final Artifact artifact)
+    {
+        final BlockingQueue<Artifact> target;
+        lock.lock();
+        try
+        {
+            throwFailure(artifact.owner);
+
+            target = async ? queue : null;
+            if (target != null)
+            {
+                increment(pendingFiles, artifact.file);
+                increment(pendingOwners, artifact.owner);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (target == null)
+        {
+            // earlier writes to the same file from asynchronous mode must not overwrite this one
+            awaitFile(artifact.file);
+            try
+            {
+                artifact.write();
+            }
+            catch (final IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
+        try
+        {
+            // blocks while the queue is full
+            target.put(artifact);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            done(artifact, null);
+            throw new RuntimeException("Interrupted while handing over " + artifact.file, e);
+        }
+    }
+
+    private static void processQueue()
+    {
+        while (true)
+        {
+            final Artifact artifact;
+            try
+            {
+                artifact = queue.take();
+            }
+            catch (final InterruptedException e)
+            {
+                return;
+            }
+
+            IOException error = null;
+            try
+            {
+                artifact.write();
+            }
+            catch (final IOException e)
+            {
+                error = e;
+            }
+            catch (final RuntimeException e)
+            {
+                error = new IOException(e);
+            }
+
+            done(artifact, error);
+        }
+    }
+
+    private static void done(final Artifact artifact, final IOException error)
+    {
+        lock.lock();
+        try
+        {
+            decrement(pendingFiles, artifact.file);
+            decrement(pendingOwners, artifact.owner);
+
+            if (error != null && !failures.containsKey(artifact.owner))
+            {
+                failures.put(artifact.owner, error);
+            }
+
+            written.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static <K> void increment(final Map<K, Integer> counts, final K key)
+    {
+        final Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private static <K> void decrement(final Map<K, Integer> counts, final K key)
+    {
+        final Integer count = counts.get(key);
+        if (count == null || count <= 1)
+        {
+            counts.remove(key);
+        }
+        else
+        {
+            counts.put(key, count - 1);
+        }
+    }
+
+    private static void throwFailure(final Object fileOwner)
+    {
+        final IOException e = failures.remove(fileOwner);
+        if (e != null)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void logFailures()
+    {
+        lock.lock();
+        try
+        {
+            for (final IOException e : failures.values())
+            {
+                XltLogger.runTimeLogger.error("Failed to write a visual assertion artifact", e);
+            }
+            failures.clear();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One file to write, either an image or already encoded data
+     */
+    private static class Artifact
+    {
+        private final File file;
+
+        // the owner that gets a failure of this write
+        private final Object owner = ArtifactWriter.owner.get();
+
+        private final BufferedImage image;
+
+        private final byte[] bytes;
+
+        private final PngEncoder encoder;
+
+        // whether the image goes back to the pool after it is written
+        private final boolean release;
+
+        Artifact(final File file, final BufferedImage image, final byte[] bytes, final PngEncoder encoder,
+                 final boolean release)
+        {
+            this.file = file;
+            this.image = image;
+            this.bytes = bytes;
+            this.encoder = encoder;
+            this.release = release;
+        }
+
+        /**
+         * Writes a temporary file next to the target and renames it, so readers and other writers see either the old
+         * or the new file, but never a partly written one
+         */
+        void write() throws IOException
+        {
+            final Path target = file.toPath().toAbsolutePath();
+            final Path temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+            try
+            {
+                if (image != null && encoder != null)
+                {
+                    Files.write(temp, encoder.encode(image));
+                }
+                else if (image != null)
+                {
+                    if (!ImageIO.write(image, "PNG", temp.toFile()))
+                    {
+                        throw new IOException("No PNG writer available for " + file);
+                    }
+                }
+                else
+                {
+                    Files.write(temp, bytes);
+                }
+
+                try
+                {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                }
+                catch (final AtomicMoveNotSupportedException e)
+                {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            finally
+            {
+                Files.deleteIfExists(temp);
+
+                // the file might have changed without a new modification time
+                BaselineCache.invalidate(file);
+
+                if (release)
+                {
+                    RasterPool.release(image);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Keeps decoded reference images and masks in memory, so the same baseline doesn't have to be decoded again for
+ * every assertion. The cache is shared by all threads of the process and limited by the number of bytes the decoded
+ * pixels take. If the limit is reached, the entries that were not used for the longest time are removed.
+ * <p>
+ * An entry is only used as long as its file has the same modification time and length as when it was read. The
+ * cached images and masks are shared between threads and must not be modified.
+ */
+public class BaselineCache
+{
+    private static final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static long maxBytes = 0;
+
+    private static long usedBytes = 0;
+
+    private static long hitCount = 0;
+
+    private static long missCount = 0;
+
+    /**
+     * Sets the number of bytes the cached pixels may take. Entries are removed right away if the new limit is lower.
+     *
+     * @param bytes
+     *            the limit in bytes, 0 or less disables the cache
+     */
+    public static synchronized void setMaxBytes(final long bytes)
+    {
+        maxBytes = Math.max(0, bytes);
+        evict();
+    }
+
+    /**
+     * Returns the reference image stored in the given file. The image is in the TYPE_INT_ARGB layout, so the
+     * comparison can access its pixels directly.
+     *
+     * @param file
+     *            the image file
+     * @return the decoded image, which must not be modified
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public static BufferedImage getImage(final File file) throws IOException
+    {
+        final String key = "image:" + file.getAbsolutePath();
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+
+        final Object cached = lookup(key, lastModified, length);
+        if (cached != null)
+        {
+            return (BufferedImage) cached;
+        }
+
+        final BufferedImage decoded = ImageIO.read(file);
+        if (decoded == null)
+        {
+            throw new IOException("Unsupported image format: " + file);
+        }
+
+        // the image is kept in the cache and never released, so it doesn't take a pooled buffer
+        final BufferedImage image = ImageRaster.of(decoded, false).getImage();
+        final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+
+        return (BufferedImage) store(key, image, (long) dataBuffer.getSize() * 4, lastModified, length);
+    }
+
+    /**
+     * Returns the mask stored in the given image file, black pixels are masked
+     *
+     * @param file
+     *            the mask image file
+     * @return the mask, which must not be modified
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public static BitMask getMask(final File file) throws IOException
+    {
+        final String key = "mask:" + file.getAbsolutePath();
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+
+        final Object cached = lookup(key, lastModified, length);
+        if (cached != null)
+        {
+            return (BitMask) cached;
+        }
+
+        final BufferedImage image = ImageIO.read(file);
+        if (image == null)
+        {
+            throw new IOException("Unsupported image format: " + file);
+        }
+
+        final BitMask mask = BitMask.fromImage(image, ImageHelper.BLACK.getRGB());
+
+        return (BitMask) store(key, mask, (long) mask.getWords().length * 8, lastModified, length);
+    }
+
+    /**
+     * Removes everything that was read from the given file. Should be called after writing to a file, because the
+     * modification time might not change if it is written twice within a short time.
+     *
+     * @param file
+     *            the file that was changed
+     */
+    public static synchronized void invalidate(final File file)
+    {
+        remove("image:" + file.getAbsolutePath());
+        remove("mask:" + file.getAbsolutePath());
+    }
+
+    /**
+     * Removes all entries
+     */
+    public static synchronized void clear()
+    {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * Returns how often a cached entry could be used
+     * @return number of hits
+     */
+    public static synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Returns how often a file had to be decoded
+     * @return number of misses
+     */
+    public static synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of bytes taken by the cached pixels
+     * @return the used bytes
+     */
+    public static synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    /**
+     * Returns the cached value if it is still up to date, and counts the hit or miss
+     */
+    private static synchronized Object lookup(final String key, final long lastModified, final long length)
+    {
+        final Entry entry = entries.get(key);
+        if (entry != null && entry.lastModified == lastModified && entry.length == length)
+        {
+            hitCount++;
+            return entry.value;
+        }
+
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Adds a decoded value unless another thread was faster, the file is decoded outside of the lock. The modification
+     * time and length are the ones from before the file was read.
+     */
+    private static synchronized Object store(final String key, final Object value, final long bytes, final long lastModified,
+                                             final long length)
+    {
+        if (bytes > maxBytes)
+        {
+            return value;
+        }
+
+        final Entry existing = entries.get(key);
+        if (existing != null)
+        {
+            if (existing.lastModified == lastModified && existing.length == length)
+            {
+                return existing.value;
+            }
+            remove(key);
+        }
+
+        entries.put(key, new Entry(value, bytes, lastModified, length));
+        usedBytes += bytes;
+        evict();
+
+        return value;
+    }
+
+    private static void remove(final String key)
+    {
+        final Entry entry = entries.remove(key);
+        if (entry != null)
+        {
+            usedBytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits into its limit
+     */
+    private static void evict()
+    {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (usedBytes > maxBytes && iterator.hasNext())
+        {
+            usedBytes -= iterator.next().bytes;
+            iterator.remove();
+        }
+    }
+
+    private static class Entry
+    {
+        private final Object value;
+
+        private final long bytes;
+
+        private final long lastModified;
+
+        private final long length;
+
+        Entry(final Object value, final long bytes, final long lastModified, final long length)
+        {
+            this.value = value;
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
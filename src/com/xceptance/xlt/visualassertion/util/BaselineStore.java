@@ -0,0 +1,103 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Creates reference images and masks that are shared by all users of a test case. If several threads find the same
+ * file missing at once, exactly one of them creates it, the others wait until it is written and then use it.
+ * <p>
+ * Threads only wait for each other if their files share a lock. The locks are striped by file, so threads working on
+ * different files hardly ever block each other. The files themselves are written atomically by the
+ * {@link ArtifactWriter}, so a reader never sees a partly written file. The locks are no monitors, so a virtual thread
+ * that waits for one doesn't keep its carrier thread.
+ */
+public class BaselineStore
+{
+    private static final int LOCK_COUNT = 64;
+
+    private static final ReentrantLock[] locks = new ReentrantLock[LOCK_COUNT];
+
+    static
+    {
+        for (int i = 0; i < LOCK_COUNT; i++)
+        {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Writes already encoded data to the file, unless it exists already or another thread is writing it
+     *
+     * @param file
+     *            the file to create
+     * @param bytes
+     *            the data to write, it must not be modified afterwards
+     * @return true if this call created the file, false if it exists already and can be read now
+     */
+    public static boolean createIfAbsent(final File file, final byte[] bytes)
+    {
+        final ReentrantLock lock = lockFor(file);
+        lock.lock();
+        try
+        {
+            if (exists(file))
+            {
+                return false;
+            }
+
+            ArtifactWriter.write(bytes, file);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes an image to the file, unless it exists already or another thread is writing it
+     *
+     * @param file
+     *            the file to create
+     * @param image
+     *            the image to write, it must not be modified afterwards
+     * @return true if this call created the file, false if it exists already and can be read now
+     */
+    public static boolean createIfAbsent(final File file, final BufferedImage image)
+    {
+        final ReentrantLock lock = lockFor(file);
+        lock.lock();
+        try
+        {
+            if (exists(file))
+            {
+                return false;
+            }
+
+            ArtifactWriter.write(image, file);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether the file exists, after a pending write of it is done. A write that is handed over while the lock
+     * is held is registered as pending right away, so the next thread waits for it here.
+     */
+    private static boolean exists(final File file)
+    {
+        ArtifactWriter.awaitFile(file);
+        return file.isFile();
+    }
+
+    private static ReentrantLock lockFor(final File file)
+    {
+        final int hash = file.getAbsolutePath().hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (LOCK_COUNT - 1)];
+    }
+}
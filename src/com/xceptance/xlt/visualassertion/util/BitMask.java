@@ -0,0 +1,333 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A binary mask with one bit per pixel. Each row starts with a new long word, so whole rows and ranges can be
+ * processed word by word. Set pixels are masked, i.e. ignored by the comparison.
+ * <p>
+ * Masks are stored as images on disk, the conversion happens only when reading and writing them with
+ * {@link #fromImage(BufferedImage, int)} and {@link #toImage(int, int)}.
+ */
+public class BitMask
+{
+    private final int width;
+
+    private final int height;
+
+    private final int wordsPerRow;
+
+    private final long[] words;
+
+    /**
+     * Creates an empty mask of the given size
+     * @param width Width of the mask
+     * @param height Height of the mask
+     */
+    public BitMask(final int width, final int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.words = new long[wordsPerRow * height];
+    }
+
+    /**
+     * Creates a mask from an image. Every pixel that has exactly the given color is set.
+     * @param image The mask image
+     * @param rgbForegroundColor The color of masked pixels
+     * @return the mask of the image
+     */
+    public static BitMask fromImage(final BufferedImage image, final int rgbForegroundColor)
+    {
+        final ImageRaster raster = ImageRaster.of(image);
+        final int[] pixels = raster.getPixels();
+        final int width = raster.getWidth();
+
+        final BitMask mask = new BitMask(width, raster.getHeight());
+        for (int y = 0; y < mask.height; y++)
+        {
+            final int rowStart = y * width;
+            for (int x = 0; x < width; x++)
+            {
+                if (pixels[rowStart + x] == rgbForegroundColor)
+                {
+                    mask.words[y * mask.wordsPerRow + (x >>> 6)] |= 1L << x;
+                }
+            }
+        }
+
+        return mask;
+    }
+
+    /**
+     * Paints the mask into a new TYPE_INT_ARGB image
+     * @param rgbForegroundColor The color for set pixels
+     * @param rgbBackgroundColor The color for all other pixels
+     * @return the mask as image
+     */
+    public BufferedImage toImage(final int rgbForegroundColor, final int rgbBackgroundColor)
+    {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        final int[] pixels = ImageRaster.of(image).getPixels();
+
+        for (int y = 0; y < height; y++)
+        {
+            final int rowStart = y * width;
+            for (int x = 0; x < width; x++)
+            {
+                pixels[rowStart + x] = get(x, y) ? rgbForegroundColor : rgbBackgroundColor;
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Creates an independent copy of this mask
+     * @return the copy
+     */
+    public BitMask copy()
+    {
+        final BitMask copy = new BitMask(width, height);
+        System.arraycopy(words, 0, copy.words, 0, words.length);
+
+        return copy;
+    }
+
+    /**
+     * Returns a mask of the given size that holds this mask in the top left corner. Areas that are not covered by
+     * this mask are not set. If the size already matches, the mask itself is returned.
+     * @param newWidth The width of the new mask
+     * @param newHeight The height of the new mask
+     * @return a mask with the given size
+     */
+    public BitMask adaptSize(final int newWidth, final int newHeight)
+    {
+        if (newWidth == width && newHeight == height)
+        {
+            return this;
+        }
+
+        final BitMask adapted = new BitMask(newWidth, newHeight);
+        final int copyWidth = Math.min(width, newWidth);
+        final int fullWords = copyWidth >>> 6;
+        final int rest = copyWidth & 63;
+
+        for (int y = 0; y < Math.min(height, newHeight); y++)
+        {
+            final int source = y * wordsPerRow;
+            final int target = y * adapted.wordsPerRow;
+
+            System.arraycopy(words, source, adapted.words, target, fullWords);
+            if (rest != 0)
+            {
+                adapted.words[target + fullWords] = words[source + fullWords] & (-1L >>> -rest);
+            }
+        }
+
+        return adapted;
+    }
+
+    /**
+     * Checks whether a pixel is set
+     * @param x x coordinate of the pixel
+     * @param y y coordinate of the pixel
+     * @return true if the pixel is masked
+     */
+    public boolean get(final int x, final int y)
+    {
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * Sets a single pixel
+     * @param x x coordinate of the pixel
+     * @param y y coordinate of the pixel
+     */
+    public void set(final int x, final int y)
+    {
+        words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+    }
+
+    /**
+     * Sets all pixels of a rectangle. Parts outside of the mask are ignored.
+     * @param x x coordinate of the upper left corner
+     * @param y y coordinate of the upper left corner
+     * @param rectWidth Width of the rectangle
+     * @param rectHeight Height of the rectangle
+     */
+    public void fillRect(final int x, final int y, final int rectWidth, final int rectHeight)
+    {
+        final int fromX = Math.max(0, x);
+        final int toX = Math.min(width, x + rectWidth);
+        final int fromY = Math.max(0, y);
+        final int toY = Math.min(height, y + rectHeight);
+
+        if (fromX >= toX)
+        {
+            return;
+        }
+
+        final int firstWord = fromX >>> 6;
+        final int lastWord = (toX - 1) >>> 6;
+        final long firstMask = -1L << fromX;
+        final long lastMask = -1L >>> -toX;
+
+        for (int row = fromY; row < toY; row++)
+        {
+            final int rowStart = row * wordsPerRow;
+            if (firstWord == lastWord)
+            {
+                words[rowStart + firstWord] |= firstMask & lastMask;
+            }
+            else
+            {
+                words[rowStart + firstWord] |= firstMask;
+                for (int i = firstWord + 1; i < lastWord; i++)
+                {
+                    words[rowStart + i] = -1L;
+                }
+                words[rowStart + lastWord] |= lastMask;
+            }
+        }
+    }
+
+    /**
+     * Checks whether any pixel is set
+     * @return true if nothing is masked
+     */
+    public boolean isEmpty()
+    {
+        for (final long word : words)
+        {
+            if (word != 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the next set pixel in a row, starting at the given position
+     * @param y The row to search in
+     * @param fromX The first x coordinate to check
+     * @return the x coordinate of the next set pixel or -1 if there is none left in this row
+     */
+    public int nextSetInRow(final int y, final int fromX)
+    {
+        if (fromX >= width)
+        {
+            return -1;
+        }
+
+        final int rowStart = y * wordsPerRow;
+        int wordIndex = fromX >>> 6;
+        long word = words[rowStart + wordIndex] & (-1L << fromX);
+
+        while (true)
+        {
+            if (word != 0)
+            {
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == wordsPerRow)
+            {
+                return -1;
+            }
+            word = words[rowStart + wordIndex];
+        }
+    }
+
+    /**
+     * Counts the set pixels in a part of a row
+     * @param y The row to count in
+     * @param fromX The first x coordinate to count
+     * @param toX The x coordinate after the last one to count
+     * @return the number of set pixels in the range
+     */
+    public int countInRow(final int y, final int fromX, final int toX)
+    {
+        if (fromX >= toX)
+        {
+            return 0;
+        }
+
+        final int rowStart = y * wordsPerRow;
+        final int firstWord = fromX >>> 6;
+        final int lastWord = (toX - 1) >>> 6;
+        final long firstMask = -1L << fromX;
+        final long lastMask = -1L >>> -toX;
+
+        if (firstWord == lastWord)
+        {
+            return Long.bitCount(words[rowStart + firstWord] & firstMask & lastMask);
+        }
+
+        int sum = Long.bitCount(words[rowStart + firstWord] & firstMask);
+        for (int i = firstWord + 1; i < lastWord; i++)
+        {
+            sum += Long.bitCount(words[rowStart + i]);
+        }
+        return sum + Long.bitCount(words[rowStart + lastWord] & lastMask);
+    }
+
+    /**
+     * Returns the next pixel in a row that is not set, starting at the given position
+     * @param y The row to search in
+     * @param fromX The first x coordinate to check
+     * @return the x coordinate of the next pixel that is not set or -1 if there is none left in this row
+     */
+    public int nextClearInRow(final int y, final int fromX)
+    {
+        if (fromX >= width)
+        {
+            return -1;
+        }
+
+        final int rowStart = y * wordsPerRow;
+        int wordIndex = fromX >>> 6;
+        long word = ~words[rowStart + wordIndex] & (-1L << fromX);
+
+        while (true)
+        {
+            if (word != 0)
+            {
+                // the unused bits after the last pixel are never set
+                final int x = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+                return x < width ? x : -1;
+            }
+            if (++wordIndex == wordsPerRow)
+            {
+                return -1;
+            }
+            word = ~words[rowStart + wordIndex];
+        }
+    }
+
+    /**
+     * Returns the backing words, row by row. Pixel (x, y) is bit x % 64 of word y * wordsPerRow + x / 64.
+     * @return the words of the mask
+     */
+    long[] getWords()
+    {
+        return words;
+    }
+
+    int getWordsPerRow()
+    {
+        return wordsPerRow;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+}
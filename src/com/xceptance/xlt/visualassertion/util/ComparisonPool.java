@@ -0,0 +1,53 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Holds the fork join pool the fuzzy comparison spreads its rows of blocks on. The pool is shared by all threads of
+ * the process, so the number of threads used for comparisons stays bounded no matter how many tests run in parallel.
+ */
+public class ComparisonPool
+{
+    private static volatile ForkJoinPool pool = null;
+
+    /**
+     * Sets the number of threads used for a comparison. The pool is only replaced if the parallelism changes.
+     *
+     * @param parallelism
+     *            number of threads, 1 or less processes everything on the calling thread, 0 uses all available
+     *            processors
+     */
+    public static synchronized void setParallelism(final int parallelism)
+    {
+        final int threads = parallelism == 0 ? Runtime.getRuntime().availableProcessors() : parallelism;
+        final ForkJoinPool current = pool;
+
+        if (threads <= 1)
+        {
+            pool = null;
+        }
+        else if (current == null || current.getParallelism() != threads)
+        {
+            pool = new ForkJoinPool(threads);
+        }
+        else
+        {
+            return;
+        }
+
+        // comparisons that are still running keep the old pool until they are done
+        if (current != null)
+        {
+            current.shutdown();
+        }
+    }
+
+    /**
+     * Returns the pool for comparisons
+     * @return the shared pool or null if comparisons run on the calling thread
+     */
+    public static ForkJoinPool getPool()
+    {
+        return pool;
+    }
+}
@@ -0,0 +1,287 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.xceptance.xlt.api.util.XltLogger;
+
+/**
+ * Admits the comparisons of all threads of the process, so that many users comparing large screenshots at once don't
+ * run the agent out of memory. A comparison waits until fewer than the maximum number of comparisons are running and
+ * its estimated memory fits into the budget. Comparisons are admitted in the order they arrive, so a large one isn't
+ * overtaken by small ones forever. A comparison that is larger than the whole budget runs once nothing else does.
+ * <p>
+ * The comparisons wait on a lock instead of a monitor, so a waiting virtual thread doesn't keep its carrier thread.
+ * <p>
+ * The queue length and the waiting times are kept as metrics, to find out how many users an agent can take. The
+ * visual assertion reports the queue length and waiting time of every comparison as custom values of its session, and
+ * the totals of the process are logged every {@link #LOG_INTERVAL} comparisons.
+ */
+public class ComparisonScheduler
+{
+    /**
+     * Estimated bytes a comparison needs per pixel of the screenshot: the decoded screenshot, its converted copy, the
+     * reference image, copies of both if they are padded to the same size and the marked and difference images.
+     */
+    public static final int BYTES_PER_PIXEL = 24;
+
+    /**
+     * Number of admitted comparisons after which the totals are logged
+     */
+    public static final int LOG_INTERVAL = 100;
+
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    // signalled whenever a waiting comparison might be admitted
+    private static final Condition changed = lock.newCondition();
+
+    // 0 means no limit
+    private static int maxComparisons = 0;
+
+    private static long maxBytes = 0;
+
+    private static int runningComparisons = 0;
+
+    private static long usedBytes = 0;
+
+    // comparisons are admitted by ticket, in the order they arrive
+    private static long nextTicket = 0;
+
+    private static long admittedTicket = 0;
+
+    private static long admittedComparisons = 0;
+
+    private static long totalWaitTime = 0;
+
+    private static long maxWaitTime = 0;
+
+    /**
+     * Sets the limits for the comparisons. Waiting comparisons are checked against the new limits right away.
+     *
+     * @param comparisons
+     *            the number of comparisons that may run at once, 0 for no limit
+     * @param bytes
+     *            the estimated bytes all running comparisons may use together, 0 for no limit
+     */
+    public static void setLimits(final int comparisons, final long bytes)
+    {
+        lock.lock();
+        try
+        {
+            if (maxComparisons != comparisons || maxBytes != bytes)
+            {
+                maxComparisons = comparisons;
+                maxBytes = bytes;
+                changed.signalAll();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Estimates the memory a comparison of a screenshot of the given size needs
+     *
+     * @param width
+     *            width of the screenshot
+     * @param height
+     *            height of the screenshot
+     * @return the estimated bytes
+     */
+    public static long estimateBytes(final int width, final int height)
+    {
+        return (long) width * height * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Waits until the comparison may run. Every call must be followed by a call of {@link #release(long)} with the same
+     * bytes once the comparison is done.
+     *
+     * @param bytes
+     *            the estimated bytes of the comparison
+     * @return the time the comparison waited in milliseconds
+     */
+    public static long acquire(final long bytes)
+    {
+        final long start = System.currentTimeMillis();
+        final long waitTime;
+        String summary = null;
+
+        lock.lock();
+        try
+        {
+            final long ticket = nextTicket++;
+            while (ticket != admittedTicket || !fits(bytes))
+            {
+                // the comparisons that run are done soon, so an interrupt doesn't give up the place in the queue
+                changed.awaitUninterruptibly();
+            }
+
+            admittedTicket++;
+            runningComparisons++;
+            usedBytes += bytes;
+
+            waitTime = System.currentTimeMillis() - start;
+            admittedComparisons++;
+            totalWaitTime += waitTime;
+            maxWaitTime = Math.max(maxWaitTime, waitTime);
+
+            if (admittedComparisons % LOG_INTERVAL == 0)
+            {
+                summary = "Visual assertion comparisons: " + admittedComparisons + " admitted, " + (nextTicket - admittedTicket)
+                          + " waiting, " + runningComparisons + " running with " + usedBytes / (1024 * 1024)
+                          + " MB, waited " + totalWaitTime / admittedComparisons + " ms on average and " + maxWaitTime
+                          + " ms at most";
+            }
+
+            // the next one in the queue might fit as well
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (summary != null)
+        {
+            XltLogger.runTimeLogger.info(summary);
+        }
+
+        return waitTime;
+    }
+
+    /**
+     * Marks a comparison as done
+     *
+     * @param bytes
+     *            the estimated bytes the comparison was admitted with
+     */
+    public static void release(final long bytes)
+    {
+        lock.lock();
+        try
+        {
+            runningComparisons--;
+            usedBytes -= bytes;
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static boolean fits(final long bytes)
+    {
+        if (runningComparisons == 0)
+        {
+            return true;
+        }
+
+        return (maxComparisons <= 0 || runningComparisons < maxComparisons) && (maxBytes <= 0 || usedBytes + bytes <= maxBytes);
+    }
+
+    /**
+     * Returns the number of comparisons that wait to be admitted
+     * @return the queue length
+     */
+    public static int getQueueLength()
+    {
+        lock.lock();
+        try
+        {
+            return (int) (nextTicket - admittedTicket);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of comparisons that are running
+     * @return the running comparisons
+     */
+    public static int getRunningComparisons()
+    {
+        lock.lock();
+        try
+        {
+            return runningComparisons;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the estimated bytes of the comparisons that are running
+     * @return the used bytes
+     */
+    public static long getUsedBytes()
+    {
+        lock.lock();
+        try
+        {
+            return usedBytes;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of comparisons that were admitted so far
+     * @return the admitted comparisons
+     */
+    public static long getAdmittedComparisons()
+    {
+        lock.lock();
+        try
+        {
+            return admittedComparisons;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the time all admitted comparisons waited together
+     * @return the total waiting time in milliseconds
+     */
+    public static long getTotalWaitTime()
+    {
+        lock.lock();
+        try
+        {
+            return totalWaitTime;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the longest time a comparison waited
+     * @return the longest waiting time in milliseconds
+     */
+    public static long getMaxWaitTime()
+    {
+        lock.lock();
+        try
+        {
+            return maxWaitTime;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
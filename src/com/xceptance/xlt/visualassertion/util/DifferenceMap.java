@@ -0,0 +1,150 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.Rectangle;
+
+/**
+ * The pixels that were found to be different by a comparison. The pixels are held in a {@link BitMask}, one bit per
+ * pixel. Additionally the number of differences and their bounding box are kept up to date while the map is filled.
+ */
+public class DifferenceMap
+{
+    private final BitMask bits;
+
+    private int count = 0;
+
+    private int minX = Integer.MAX_VALUE;
+
+    private int minY = Integer.MAX_VALUE;
+
+    private int maxX = -1;
+
+    private int maxY = -1;
+
+    /**
+     * Creates an empty difference map for an image of the given size
+     * @param width Width of the compared images
+     * @param height Height of the compared images
+     */
+    public DifferenceMap(final int width, final int height)
+    {
+        this.bits = new BitMask(width, height);
+    }
+
+    /**
+     * Marks the pixel at the given position as different
+     * @param x x coordinate of the pixel
+     * @param y y coordinate of the pixel
+     */
+    public void set(final int x, final int y)
+    {
+        if (!bits.get(x, y))
+        {
+            bits.set(x, y);
+            count++;
+
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+    }
+
+    /**
+     * Checks whether the pixel at the given position is different
+     * @param x x coordinate of the pixel
+     * @param y y coordinate of the pixel
+     * @return true if the pixel was marked as different
+     */
+    public boolean isSet(final int x, final int y)
+    {
+        return bits.get(x, y);
+    }
+
+    /**
+     * Returns the next different pixel in a row, starting at the given position
+     * @param y The row to search in
+     * @param fromX The first x coordinate to check
+     * @return the x coordinate of the next different pixel or -1 if there is none left in this row
+     */
+    public int nextSetInRow(final int y, final int fromX)
+    {
+        return bits.nextSetInRow(y, fromX);
+    }
+
+    /**
+     * Counts the differences in a part of a row
+     * @param y The row to count in
+     * @param fromX The first x coordinate to count
+     * @param toX The x coordinate after the last one to count
+     * @return the number of different pixels in the range
+     */
+    public int countInRow(final int y, final int fromX, final int toX)
+    {
+        return bits.countInRow(y, fromX, toX);
+    }
+
+    /**
+     * Copies the differences of a horizontal band into this map. The band must have the same width and its rows in
+     * this map must not hold any differences yet.
+     * @param band The differences of the band
+     * @param yOffset The row of this map that corresponds to the first row of the band
+     */
+    public void insert(final DifferenceMap band, final int yOffset)
+    {
+        if (band.isEmpty())
+        {
+            return;
+        }
+
+        final long[] bandWords = band.bits.getWords();
+        System.arraycopy(bandWords, 0, bits.getWords(), yOffset * bits.getWordsPerRow(), bandWords.length);
+
+        count += band.count;
+        minX = Math.min(minX, band.minX);
+        maxX = Math.max(maxX, band.maxX);
+        minY = Math.min(minY, band.minY + yOffset);
+        maxY = Math.max(maxY, band.maxY + yOffset);
+    }
+
+    /**
+     * Returns the number of pixels that are marked as different
+     * @return number of differences
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Checks whether any difference was found
+     * @return true if no pixel was marked as different
+     */
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    /**
+     * Returns the smallest rectangle that contains all differences
+     * @return the bounding box of the differences, an empty rectangle if there are none
+     */
+    public Rectangle getBounds()
+    {
+        if (count == 0)
+        {
+            return new Rectangle();
+        }
+
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    public int getWidth()
+    {
+        return bits.getWidth();
+    }
+
+    public int getHeight()
+    {
+        return bits.getHeight();
+    }
+}
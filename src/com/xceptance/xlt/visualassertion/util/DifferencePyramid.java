@@ -0,0 +1,234 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.xceptance.xlt.visualassertion.algorithm.ComparisonAlgorithm;
+import com.xceptance.xlt.visualassertion.algorithm.ComparisonType;
+
+/**
+ * The coarse stage of a pyramid comparison. The absolute differences of all channels of the unmasked pixels are summed
+ * up in small tiles, and the tiles are summed up again in levels of twice the size, up to one tile for the whole
+ * image. Runs of equal pixels are skipped at the speed of an exact comparison.
+ * <p>
+ * Going down from the top, every tile whose sum is small enough can't hold a single pixel above the color tolerance,
+ * because no pixel of it can differ by more than the whole sum. These tiles are added to the mask, so the comparison
+ * at full resolution only looks at the remaining ones. Masked pixels count as equal, so this doesn't change the result
+ * of any comparison algorithm.
+ */
+public class DifferencePyramid
+{
+    // the smallest tiles are 8x8 pixels
+    private static final int TILE_SHIFT = 3;
+
+    private static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+    private final int width;
+
+    private final int height;
+
+    // the sums of each level, level 0 holds the smallest tiles
+    private final List<long[]> levels = new ArrayList<>();
+
+    private final List<int[]> levelSizes = new ArrayList<>();
+
+    private final BitMask mask;
+
+    private int remainingTiles = 0;
+
+    /**
+     * Builds the pyramid and finds the tiles without differences
+     *
+     * @param img1
+     *            The first image for the comparison
+     * @param img2
+     *            The second image for the comparison, of the same size
+     * @param mask
+     *            The pixels that are skipped and count as equal, null if nothing is masked. It is not modified.
+     * @param algorithm
+     *            The algorithm that compares the remaining tiles at full resolution
+     */
+    public DifferencePyramid(final BufferedImage img1, final BufferedImage img2, final BitMask mask,
+                             final ComparisonAlgorithm algorithm)
+    {
+        final ImageRaster raster1 = ImageRaster.of(img1);
+        final ImageRaster raster2 = ImageRaster.of(img2);
+        width = raster1.getWidth();
+        height = raster1.getHeight();
+
+        final int limit = calculateSumLimit(algorithm);
+        if (limit < 0 || !raster1.hasSameSize(raster2))
+        {
+            // nothing can be skipped, even identical pixels might be different
+            this.mask = mask;
+            remainingTiles = 1;
+            return;
+        }
+
+        this.mask = mask == null ? new BitMask(width, height) : mask.copy();
+
+        sumTiles(raster1.getPixels(), raster2.getPixels(), mask);
+
+        while (levelSizes.get(levelSizes.size() - 1)[0] > 1 || levelSizes.get(levelSizes.size() - 1)[1] > 1)
+        {
+            addLevel();
+        }
+
+        final int top = levels.size() - 1;
+        markTiles(top, 0, 0, limit);
+    }
+
+    /**
+     * Returns whether there are tiles left that have to be compared at full resolution
+     *
+     * @return false if the images are equal within the color tolerance
+     */
+    public boolean hasDifferences()
+    {
+        return remainingTiles > 0;
+    }
+
+    /**
+     * Returns the given mask, extended by all tiles without differences
+     *
+     * @return the mask for the comparison at full resolution
+     */
+    public BitMask getMask()
+    {
+        return mask;
+    }
+
+    /**
+     * Sums up the differences in the tiles of the lowest level, masked pixels are left out
+     */
+    private void sumTiles(final int[] pixels1, final int[] pixels2, final BitMask imageMask)
+    {
+        final int tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+        final int tilesY = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+        final long[] sums = new long[tilesX * tilesY];
+
+        for (int y = 0; y < height; y++)
+        {
+            final int rowStart = y * width;
+            final int tileRow = (y >> TILE_SHIFT) * tilesX;
+
+            int spanStart = ImageHelper.nextUnmasked(imageMask, y, 0, width);
+            while (spanStart < width)
+            {
+                final int spanEnd = ImageHelper.nextMasked(imageMask, y, spanStart, width);
+
+                // equal pixels add nothing, so only the different ones are looked at
+                int i = ImageHelper.findMismatch(pixels1, pixels2, rowStart + spanStart, rowStart + spanEnd);
+                while (i >= 0)
+                {
+                    final int rgb1 = pixels1[i];
+                    final int rgb2 = pixels2[i];
+                    sums[tileRow + ((i - rowStart) >> TILE_SHIFT)] += Math.abs((rgb1 >>> 24) - (rgb2 >>> 24))
+                                                                      + Math.abs(((rgb1 >> 16) & 0xFF) - ((rgb2 >> 16) & 0xFF))
+                                                                      + Math.abs(((rgb1 >> 8) & 0xFF) - ((rgb2 >> 8) & 0xFF))
+                                                                      + Math.abs((rgb1 & 0xFF) - (rgb2 & 0xFF));
+
+                    i = ImageHelper.findMismatch(pixels1, pixels2, i + 1, rowStart + spanEnd);
+                }
+
+                spanStart = ImageHelper.nextUnmasked(imageMask, y, spanEnd, width);
+            }
+        }
+
+        levels.add(sums);
+        levelSizes.add(new int[] { tilesX, tilesY });
+    }
+
+    /**
+     * Adds a level on top, each of its tiles holds the sum of 2x2 tiles of the level below
+     */
+    private void addLevel()
+    {
+        final long[] below = levels.get(levels.size() - 1);
+        final int belowX = levelSizes.get(levelSizes.size() - 1)[0];
+        final int belowY = levelSizes.get(levelSizes.size() - 1)[1];
+
+        final int tilesX = (belowX + 1) >> 1;
+        final int tilesY = (belowY + 1) >> 1;
+        final long[] sums = new long[tilesX * tilesY];
+
+        for (int y = 0; y < belowY; y++)
+        {
+            for (int x = 0; x < belowX; x++)
+            {
+                sums[(y >> 1) * tilesX + (x >> 1)] += below[y * belowX + x];
+            }
+        }
+
+        levels.add(sums);
+        levelSizes.add(new int[] { tilesX, tilesY });
+    }
+
+    /**
+     * Masks the given tile if it has no differences, otherwise goes on with its four tiles on the level below
+     */
+    private void markTiles(final int level, final int tileX, final int tileY, final int limit)
+    {
+        final int tilesX = levelSizes.get(level)[0];
+        final int tilesY = levelSizes.get(level)[1];
+        if (tileX >= tilesX || tileY >= tilesY)
+        {
+            return;
+        }
+
+        final int shift = TILE_SHIFT + level;
+        if (levels.get(level)[tileY * tilesX + tileX] <= limit)
+        {
+            mask.fillRect(tileX << shift, tileY << shift, 1 << shift, 1 << shift);
+            return;
+        }
+
+        if (level == 0)
+        {
+            remainingTiles++;
+            return;
+        }
+
+        for (int y = 0; y < 2; y++)
+        {
+            for (int x = 0; x < 2; x++)
+            {
+                markTiles(level - 1, 2 * tileX + x, 2 * tileY + y, limit);
+            }
+        }
+    }
+
+    /**
+     * Calculates the largest sum of channel differences a tile may have, so that none of its pixels differs by more
+     * than the color tolerance. The squared weighted distance of a pixel is at most four times the square of the sum of
+     * its channel differences.
+     *
+     * @return the largest sum, -1 if not even identical pixels are tolerated
+     */
+    private static int calculateSumLimit(final ComparisonAlgorithm algorithm)
+    {
+        if (algorithm.getType() == ComparisonType.EXACTMATCH)
+        {
+            return 0;
+        }
+
+        final int squaredTolerance = ImageHelper.calculateSquaredColorTolerance(algorithm.getColorTolerance());
+        if (squaredTolerance < 0)
+        {
+            return -1;
+        }
+
+        int limit = (int) Math.sqrt(squaredTolerance / 4.0);
+        while (4 * limit * limit > squaredTolerance)
+        {
+            limit--;
+        }
+        while (4 * (limit + 1) * (limit + 1) <= squaredTolerance)
+        {
+            limit++;
+        }
+
+        return limit;
+    }
+}
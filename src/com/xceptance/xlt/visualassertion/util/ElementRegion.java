@@ -0,0 +1,126 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * The place of an element as the browser sees it, to find the element on a screenshot. The browser measures in CSS
+ * pixels relative to the viewport, while the screenshot has device pixels, which are more on HiDPI screens. Most
+ * drivers capture only the viewport, but some capture the whole page, then the scroll position has to be added.
+ */
+public class ElementRegion
+{
+    /**
+     * Script that measures the element given as first argument. It returns the bounding rectangle relative to the
+     * viewport, the scroll position, the viewport height and the device pixel ratio.
+     */
+    public static final String SCRIPT = "var r = arguments[0].getBoundingClientRect();"
+        + "return [r.left, r.top, r.width, r.height, window.pageXOffset, window.pageYOffset, window.innerHeight,"
+        + " window.devicePixelRatio || 1];";
+
+    private final double left;
+
+    private final double top;
+
+    private final double width;
+
+    private final double height;
+
+    private final double scrollX;
+
+    private final double scrollY;
+
+    private final double viewportHeight;
+
+    private final double devicePixelRatio;
+
+    /**
+     * Constructs the region of an element, all values in CSS pixels
+     *
+     * @param left
+     *            left edge of the element relative to the viewport
+     * @param top
+     *            top edge of the element relative to the viewport
+     * @param width
+     *            width of the element
+     * @param height
+     *            height of the element
+     * @param scrollX
+     *            horizontal scroll position of the page
+     * @param scrollY
+     *            vertical scroll position of the page
+     * @param viewportHeight
+     *            height of the viewport
+     * @param devicePixelRatio
+     *            device pixels per CSS pixel
+     */
+    public ElementRegion(final double left, final double top, final double width, final double height, final double scrollX,
+                         final double scrollY, final double viewportHeight, final double devicePixelRatio)
+    {
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+        this.scrollX = scrollX;
+        this.scrollY = scrollY;
+        this.viewportHeight = viewportHeight;
+        this.devicePixelRatio = devicePixelRatio > 0 ? devicePixelRatio : 1;
+    }
+
+    /**
+     * Creates the region from what {@link #SCRIPT} returned
+     *
+     * @param values
+     *            the numbers returned by the script
+     * @return the region of the element
+     */
+    public static ElementRegion fromScriptResult(final List<?> values)
+    {
+        if (values == null || values.size() < 8)
+        {
+            throw new IllegalArgumentException("The element could not be measured: " + values);
+        }
+
+        final double[] numbers = new double[8];
+        for (int i = 0; i < numbers.length; i++)
+        {
+            final Object value = values.get(i);
+            numbers[i] = value instanceof Number ? ((Number) value).doubleValue() : 0;
+        }
+
+        return new ElementRegion(numbers[0], numbers[1], numbers[2], numbers[3], numbers[4], numbers[5], numbers[6],
+                                 numbers[7]);
+    }
+
+    /**
+     * Returns the device pixels of the screenshot that show the element. Partly covered pixels at the edges belong to
+     * the element. The region is cut to the screenshot, so it is empty if the element can't be seen on it.
+     *
+     * @param screenshotWidth
+     *            width of the screenshot
+     * @param screenshotHeight
+     *            height of the screenshot
+     * @return the region in screenshot coordinates, may be empty
+     */
+    public Rectangle toScreenshotRegion(final int screenshotWidth, final int screenshotHeight)
+    {
+        // a screenshot higher than the viewport shows the whole page
+        final boolean wholePage = screenshotHeight > Math.ceil(viewportHeight * devicePixelRatio);
+        final double x = wholePage ? left + scrollX : left;
+        final double y = wholePage ? top + scrollY : top;
+
+        final int startX = (int) Math.floor(x * devicePixelRatio);
+        final int startY = (int) Math.floor(y * devicePixelRatio);
+        final int endX = (int) Math.ceil((x + width) * devicePixelRatio);
+        final int endY = (int) Math.ceil((y + height) * devicePixelRatio);
+
+        final Rectangle region = new Rectangle(startX, startY, endX - startX, endY - startY)
+            .intersection(new Rectangle(0, 0, screenshotWidth, screenshotHeight));
+        if (region.isEmpty())
+        {
+            return new Rectangle();
+        }
+
+        return region;
+    }
+}
@@ -1,7 +1,7 @@
 package com.xceptance.xlt.visualassertion.util;
 
 import java.awt.Color;
-import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 
 import org.junit.Assert;
@@ -10,22 +10,41 @@ import com.xceptance.xlt.visualassertion.algorithm.ComparisonAlgorithm;
 
 public class ImageComparison
 {
-    private Point[] lastDifferences = null;
+    private DifferenceMap lastDifferences = null;
 
-    private BufferedImage reference;
+    private final BufferedImage reference;
+
+    private BufferedImage lastReference;
 
     private BufferedImage lastCompareImage;
 
+    // the copy of the compare image that was padded to the size of the reference image, if any
+    private BufferedImage paddedCompareImage;
+
     private boolean resized = false;
 
+    private final boolean failFast;
+
 
     /**
      * Creates a new instance of ImageComparison that uses the given reference image
      * @param reference Reference image for all comparison functions
      */
     public ImageComparison(final BufferedImage reference)
+    {
+        this(reference, false);
+    }
+
+    /**
+     * Creates a new instance of ImageComparison that uses the given reference image
+     * @param reference Reference image for all comparison functions
+     * @param failFast If true, a comparison stops at the first difference or failing fuzzy block. The verdict stays
+     *            the same, but marked and difference images only show this first difference.
+     */
+    public ImageComparison(final BufferedImage reference, final boolean failFast)
     {
         this.reference = reference;
+        this.failFast = failFast;
     }
 
     /**
@@ -36,11 +55,25 @@ public class ImageComparison
      * @return true if the two images are calculated as equal, false if not
      */
     public boolean isEqual(final BufferedImage compareImage, final BufferedImage mask, final ComparisonAlgorithm algorithm)
+    {
+        return isEqual(compareImage, BitMask.fromImage(mask, ImageHelper.BLACK.getRGB()), algorithm);
+    }
+
+    /**
+     * Checks whether two images can be considered equal as determined by the given algorithm
+     * @param compareImage The image that is compared to the reference image
+     * @param mask The mask that sets the dynamic content areas, which are ignored in the comparison
+     * @param algorithm The algorithm with which the assertion is calculated
+     * @return true if the two images are calculated as equal, false if not
+     */
+    public boolean isEqual(final BufferedImage compareImage, BitMask mask, final ComparisonAlgorithm algorithm)
     {
         resized = false;
 
-        lastCompareImage = ImageHelper.copyImage(compareImage);
-        BufferedImage maskCopy = ImageHelper.copyImage(mask);
+        // the images are only read, a copy is just needed if they have to be padded to the same size
+        lastReference = reference;
+        lastCompareImage = compareImage;
+        paddedCompareImage = null;
 
         final int maxWidth = Math.max(reference.getWidth(), lastCompareImage.getWidth());
         final int maxHeight = Math.max(reference.getHeight(), lastCompareImage.getHeight());
@@ -51,38 +84,59 @@ public class ImageComparison
         if (maxWidth != minWidth || maxHeight != minHeight)
         {
             resized = true;
-            reference = ImageHelper.adaptImageSize(reference, maxWidth, maxHeight);
-            lastCompareImage = ImageHelper.adaptImageSize(lastCompareImage, maxWidth, maxHeight);
-            maskCopy = ImageHelper.adaptImageSize(maskCopy, maxWidth, maxHeight);
+            lastReference = ImageHelper.adaptImageSize(reference, maxWidth, maxHeight);
+            lastCompareImage = ImageHelper.adaptImageSize(compareImage, maxWidth, maxHeight);
+            if (lastCompareImage != compareImage)
+            {
+                paddedCompareImage = lastCompareImage;
+            }
+        }
+
+        // a mask of another size covers the top left corner, the masked pixels are skipped by the comparison
+        mask = mask.adaptSize(maxWidth, maxHeight);
 
+        lastDifferences = compare(mask, algorithm);
+
+        if(lastDifferences == null)
+        {
+            Assert.fail("The dimensions of the two images don't match!");
         }
 
-        final BufferedImage maskedReference = ImageHelper.overlayMaskImage(reference, maskCopy, ImageHelper.BLACK.getRGB());
-        final BufferedImage maskedCompareImage = ImageHelper.overlayMaskImage(lastCompareImage, maskCopy, ImageHelper.BLACK.getRGB());
+        return lastDifferences.isEmpty();
+
+    }
 
+    /**
+     * Runs the algorithm on the reference image and the compare image, which are of the same size
+     * @param mask The pixels that are skipped and count as equal
+     * @param algorithm The algorithm with which the differences are calculated
+     * @return DifferenceMap that contains the pixels that are different, null if the image sizes don't match
+     */
+    private DifferenceMap compare(final BitMask mask, final ComparisonAlgorithm algorithm)
+    {
         switch (algorithm.getType())
         {
         case EXACTMATCH:
-            lastDifferences = ImageHelper.compareImages(maskedReference, maskedCompareImage);
-            break;
+            return ImageHelper.compareImages(lastReference, lastCompareImage, mask, failFast);
 
         case COLORFUZZY:
-            lastDifferences = ImageHelper.colorFuzzyCompare(maskedReference, maskedCompareImage, algorithm.getColorTolerance());
-            break;
+            return ImageHelper.colorFuzzyCompare(lastReference, lastCompareImage, mask, algorithm.getColorTolerance(), failFast);
 
         case PIXELFUZZY:
-            lastDifferences = ImageHelper.fuzzyCompare(maskedReference, maskedCompareImage, algorithm.getColorTolerance(),
-                    algorithm.getPixelTolerance(), algorithm.getFuzzyBlockSize());
-            break;
+            return ImageHelper.fuzzyCompare(lastReference, lastCompareImage, mask, algorithm.getColorTolerance(),
+                    algorithm.getPixelTolerance(), algorithm.getFuzzyBlockSize(), algorithm.getFuzzyBlockStride(), failFast);
+
+        case PYRAMID:
+            // only the tiles that might hold differences are compared at full resolution
+            final DifferencePyramid pyramid = new DifferencePyramid(lastReference, lastCompareImage, mask, algorithm.getBaseAlgorithm());
+            if (!pyramid.hasDifferences())
+            {
+                return new DifferenceMap(lastReference.getWidth(), lastReference.getHeight());
+            }
+            return compare(pyramid.getMask(), algorithm.getBaseAlgorithm());
         }
 
-        if(lastDifferences == null)
-        {
-            Assert.fail("The dimensions of the two images don't match!");
-        }
-
-        return lastDifferences.length == 0;
-
+        return null;
     }
 
     /**
@@ -95,7 +149,7 @@ public class ImageComparison
      */
     public boolean isEqual(final BufferedImage compareImage, final MaskImage mask, final ComparisonAlgorithm algorithm)
     {
-        return isEqual(compareImage, mask.getMask(), algorithm);
+        return isEqual(compareImage, mask.getBitMask(), algorithm);
     }
 
     /**
@@ -129,31 +183,58 @@ public class ImageComparison
      */
     public BufferedImage getDifferenceImage()
     {
-        if (lastDifferences.length == 0)
+        if (lastDifferences.isEmpty())
             return null;
 
         // create a difference picture based on reference and paint it black
-        BufferedImage difference = ImageHelper.createPlainImage(reference, Color.BLACK);
+        BufferedImage difference = ImageHelper.createPlainImage(lastReference, Color.BLACK);
 
         // mark differences in greyscale
+        final Rectangle bounds = lastDifferences.getBounds();
         Color greyscale;
-        int x, y, diffColor;
+        int diffColor;
         double pixelColorDiff;
-        for (final Point point : lastDifferences)
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++)
         {
-            x = point.x;
-            y = point.y;
-            pixelColorDiff = ImageHelper.calculatePixelRGBDiff(reference.getRGB(x, y), lastCompareImage.getRGB(x, y));
-
-            diffColor = (int) Math.round(255 * pixelColorDiff);
-            greyscale = new Color(diffColor, diffColor, diffColor, 255);
-            difference.setRGB(x, y, greyscale.getRGB());
+            for (int x = lastDifferences.nextSetInRow(y, bounds.x); x >= 0; x = lastDifferences.nextSetInRow(y, x + 1))
+            {
+                pixelColorDiff = ImageHelper.calculatePixelRGBDiff(lastReference.getRGB(x, y), lastCompareImage.getRGB(x, y));
+
+                diffColor = (int) Math.round(255 * pixelColorDiff);
+                greyscale = new Color(diffColor, diffColor, diffColor, 255);
+                difference.setRGB(x, y, greyscale.getRGB());
+            }
         }
 
         // draw borders on the differences if compared images differed in size
         if (resized)
-            difference = ImageHelper.markImageBorders(difference, 0, 0);
+        {
+            final BufferedImage unmarked = difference;
+            difference = ImageHelper.markImageBorders(unmarked, 0, 0);
+            RasterPool.release(unmarked);
+        }
 
         return difference;
     }
+
+    /**
+     * Gives the images padded to the same size by the last comparison back to the {@link RasterPool}. Afterwards no
+     * marked or difference image can be created for the last comparison anymore. The images passed in are not
+     * released.
+     */
+    public void release()
+    {
+        // an image that already had the larger size was not copied
+        if (lastReference != reference)
+        {
+            RasterPool.release(lastReference);
+        }
+        RasterPool.release(paddedCompareImage);
+
+        lastReference = null;
+        lastCompareImage = null;
+        paddedCompareImage = null;
+        lastDifferences = null;
+        resized = false;
+    }
 }
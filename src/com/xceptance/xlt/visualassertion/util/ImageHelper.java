@@ -4,9 +4,18 @@ import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Util class which provides the necessary function to manipulate and create images for the comparison
@@ -20,10 +29,23 @@ public class ImageHelper
     // black
     protected final static Color BLACK = new Color(0, 0, 0);
 
-    protected final static int SCALING_FACTOR = 10;
+    // the largest weighted color distance (white to black) and its square
+    protected final static double MAX_RGB_DIFF = 721.2489168102785;
+
+    protected final static int MAX_RGB_DIFF_SQUARED = 8 * 255 * 255;
+
+    // Arrays.mismatch of Java 9 and newer, which compares with wide vector instructions, null on older runtimes
+    private final static MethodHandle MISMATCH = lookupMismatch();
+
+    // the fuzzy comparison does not split the image into tiles smaller than this
+    protected final static int MIN_PIXELS_PER_TILE = 1 << 16;
+
+    // the structuring element of a mask closing is configured in blocks of this many pixels
+    protected final static int CLOSE_BLOCK_SIZE = 10;
 
     /**
-     * Creates another image, which is a copy of the source image
+     * Creates another image, which is a copy of the source image. Copies of TYPE_INT_ARGB images get a buffer from the
+     * {@link RasterPool}.
      * 
      * @param source
      *            the image to copy
@@ -41,6 +63,11 @@ public class ImageHelper
             imageType = BufferedImage.TYPE_INT_ARGB;
         }
 
+        if (imageType == BufferedImage.TYPE_INT_ARGB)
+        {
+            return ImageRaster.copyOf(source).getImage();
+        }
+
         final BufferedImage copy = new BufferedImage(source.getWidth(), source.getHeight(), imageType);
         final Graphics g = copy.getGraphics();
         g.drawImage(source, 0, 0, null);
@@ -50,21 +77,18 @@ public class ImageHelper
 
 
     /**
-     * Returns a image of the same size as the given image filled with the given color
+     * Returns a TYPE_INT_ARGB image of the same size as the given image filled with the given color. Its buffer is
+     * taken from the {@link RasterPool}.
      * @param image Image which sets the size for the new image
      * @param c Color for the image
      * @return A monochrome BufferedImage with the given color
      */
     protected static BufferedImage createPlainImage(final BufferedImage image, final Color c)
     {
-        final BufferedImage copy = copyImage(image);
-
-        final Graphics2D g = copy.createGraphics();
-        g.setColor(c);
-        g.fillRect(0, 0, image.getWidth(), image.getHeight());
-        g.dispose();
+        final BufferedImage plain = RasterPool.createImage(image.getWidth(), image.getHeight());
+        Arrays.fill(ImageRaster.of(plain).getPixels(), c.getRGB());
 
-        return copy;
+        return plain;
     }
 
 
@@ -81,8 +105,21 @@ public class ImageHelper
      */
     protected static double calculatePixelRGBDiff(final int rgb1, final int rgb2)
     {
-        final double MAX = 721.2489168102785;
+        return Math.sqrt(calculatePixelRGBDiffSquared(rgb1, rgb2)) / MAX_RGB_DIFF;
+    }
 
+    /**
+     * Calculates the weighted color distance of {@link #calculatePixelRGBDiff(int, int)} in integer arithmetic, before
+     * the square root is taken and before it is normalized.
+     * 
+     * @param rgb1
+     *            color number 1
+     * @param rgb2
+     *            color number 2
+     * @return the squared weighted distance between the colors, from 0 to {@link #MAX_RGB_DIFF_SQUARED}
+     */
+    protected static int calculatePixelRGBDiffSquared(final int rgb1, final int rgb2)
+    {
         // Initialize the red, green, blue values
         final int r1 = (rgb1 >> 16) & 0xFF;
         final int g1 = (rgb1 >> 8) & 0xFF;
@@ -96,13 +133,69 @@ public class ImageHelper
 
         // Initialize the weight parameters
         final int rLevel = (r1 + r2) / 2;
-        final double rWeight = 2 + rLevel / 256;
-        final double gWeight = 4.0;
-        final double bWeight = 2 + ((255 - rLevel) / 256);
+        final int rWeight = 2 + rLevel / 256;
+        final int gWeight = 4;
+        final int bWeight = 2 + ((255 - rLevel) / 256);
+
+        return rWeight * rDiff * rDiff + gWeight * gDiff * gDiff + bWeight * bDiff * bDiff;
+    }
+
+    /**
+     * Converts a color tolerance into the largest squared distance, as calculated by
+     * {@link #calculatePixelRGBDiffSquared(int, int)}, that is still within the tolerance. A pixel is different if its
+     * squared distance is greater than the returned value, which gives exactly the same result as comparing
+     * {@link #calculatePixelRGBDiff(int, int)} with the tolerance.
+     * 
+     * @param colorTolerance A threshold value that calculates the allowed difference in color between two pixels [0-1[
+     * @return the largest tolerated squared distance, -1 if not even identical colors are tolerated
+     */
+    protected static int calculateSquaredColorTolerance(final double colorTolerance)
+    {
+        if (Double.isNaN(colorTolerance))
+        {
+            // nothing is greater than NaN
+            return MAX_RGB_DIFF_SQUARED;
+        }
+
+        final double limit = colorTolerance * MAX_RGB_DIFF;
+        int squaredTolerance = (int) Math.max(-1, Math.min(MAX_RGB_DIFF_SQUARED, Math.floor(limit * limit)));
+        if (colorTolerance < 0)
+        {
+            squaredTolerance = -1;
+        }
 
-        final double cDiff = Math.sqrt(rWeight * rDiff * rDiff + gWeight * gDiff * gDiff + bWeight * bDiff * bDiff);
+        // settle rounding issues at the boundary with the exact calculation
+        while (squaredTolerance >= 0 && Math.sqrt(squaredTolerance) / MAX_RGB_DIFF > colorTolerance)
+        {
+            squaredTolerance--;
+        }
+        while (squaredTolerance < MAX_RGB_DIFF_SQUARED && Math.sqrt(squaredTolerance + 1) / MAX_RGB_DIFF <= colorTolerance)
+        {
+            squaredTolerance++;
+        }
 
-        return cDiff / MAX;
+        return squaredTolerance;
+    }
+
+    /**
+     * Checks whether two pixels differ by more than the tolerated color distance. Identical values are not calculated
+     * at all.
+     * 
+     * @param rgb1
+     *            color number 1
+     * @param rgb2
+     *            color number 2
+     * @param squaredColorTolerance the result of {@link #calculateSquaredColorTolerance(double)}
+     * @return true if the difference between the colors is above the tolerance
+     */
+    protected static boolean isColorDifferent(final int rgb1, final int rgb2, final int squaredColorTolerance)
+    {
+        if (rgb1 == rgb2)
+        {
+            return squaredColorTolerance < 0;
+        }
+
+        return calculatePixelRGBDiffSquared(rgb1, rgb2) > squaredColorTolerance;
     }
 
 
@@ -134,29 +227,153 @@ public class ImageHelper
      * 
      * @param img1 First image for the comparison
      * @param img2 Second image for the comparison
-     * @return Point[] array that contains the coordinates of pixels that are different
+     * @param mask The pixels that are skipped and count as equal, null if nothing is masked
+     * @param failFast Stop at the first difference, the result then only holds this single difference
+     * @return DifferenceMap that contains the pixels that are different, null if the image sizes don't match
      */
-    protected static Point[] compareImages(final BufferedImage img1, final BufferedImage img2)
+    protected static DifferenceMap compareImages(final BufferedImage img1, final BufferedImage img2, final BitMask mask,
+            final boolean failFast)
     {
         if(img1.getWidth() != img2.getWidth() || img1.getHeight() != img2.getHeight()){
             return null;
         }
 
-        final ArrayList<Point> pixels = new ArrayList<>();
+        final ImageRaster raster1 = ImageRaster.of(img1);
+        final ImageRaster raster2 = ImageRaster.of(img2);
+        final int[] pixels1 = raster1.getPixels();
+        final int[] pixels2 = raster2.getPixels();
+        final int width = raster1.getWidth();
+        final int height = raster1.getHeight();
+
+        final DifferenceMap differences = new DifferenceMap(width, height);
 
-        for (int x = 0; x < img1.getWidth(); x++)
+        // walk row by row, this is the order the pixels are stored in
+        for (int y = 0; y < height; y++)
         {
-            for (int y = 0; y < img1.getHeight(); y++)
+            final int rowStart = y * width;
+
+            int spanStart = nextUnmasked(mask, y, 0, width);
+            while (spanStart < width)
             {
-                // if the RGB values of 2 pixels differ
-                if (img1.getRGB(x, y) != img2.getRGB(x, y))
+                final int spanEnd = nextMasked(mask, y, spanStart, width);
+
+                // jump from one pixel whose RGB values differ to the next
+                for (int i = findMismatch(pixels1, pixels2, rowStart + spanStart, rowStart + spanEnd); i >= 0;
+                     i = findMismatch(pixels1, pixels2, i + 1, rowStart + spanEnd))
                 {
-                    pixels.add(new Point(x,y));
+                    differences.set(i - rowStart, y);
+
+                    if (failFast)
+                    {
+                        return differences;
+                    }
                 }
+
+                spanStart = nextUnmasked(mask, y, spanEnd, width);
+            }
+        }
+
+        return differences;
+    }
+
+    /**
+     * Finds the next pixel of a row that is not masked
+     * 
+     * @param mask The mask, null if nothing is masked
+     * @param y The row to search in
+     * @param fromX The first x coordinate to check
+     * @param width The width of the image
+     * @return the x coordinate of the next pixel that is not masked or the width if there is none left
+     */
+    protected static int nextUnmasked(final BitMask mask, final int y, final int fromX, final int width)
+    {
+        if (mask == null)
+        {
+            return fromX;
+        }
+
+        final int x = mask.nextClearInRow(y, fromX);
+        return x < 0 ? width : x;
+    }
+
+    /**
+     * Finds the next masked pixel of a row, which ends the current span of pixels that have to be compared
+     * 
+     * @param mask The mask, null if nothing is masked
+     * @param y The row to search in
+     * @param fromX The first x coordinate to check
+     * @param width The width of the image
+     * @return the x coordinate of the next masked pixel or the width if there is none left
+     */
+    protected static int nextMasked(final BitMask mask, final int y, final int fromX, final int width)
+    {
+        if (mask == null)
+        {
+            return width;
+        }
+
+        final int x = mask.nextSetInRow(y, fromX);
+        return x < 0 ? width : x;
+    }
+
+    /**
+     * Finds the first index in the given range at which both arrays hold different values. Java 9 and newer compare
+     * the whole range with Arrays.mismatch, older runtimes with a plain loop.
+     * 
+     * @param pixels1 First pixel array
+     * @param pixels2 Second pixel array
+     * @param from First index to check
+     * @param to Index after the last one to check
+     * @return the first index with different values or -1 if the range is equal
+     */
+    protected static int findMismatch(final int[] pixels1, final int[] pixels2, final int from, final int to)
+    {
+        if (MISMATCH != null)
+        {
+            final int offset;
+            try
+            {
+                offset = (int) MISMATCH.invokeExact(pixels1, from, to, pixels2, from, to);
             }
+            catch (final RuntimeException | Error e)
+            {
+                throw e;
+            }
+            catch (final Throwable e)
+            {
+                // Arrays.mismatch declares no checked exceptions
+                throw new IllegalStateException(e);
+            }
+            return offset < 0 ? -1 : from + offset;
         }
 
-        return pixels.toArray(new Point[pixels.size()]);
+        for (int i = from; i < to; i++)
+        {
+            if (pixels1[i] != pixels2[i])
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Looks up Arrays.mismatch for int ranges, the module is compiled for runtimes that don't have it
+     * @return the method or null if the runtime doesn't have it
+     */
+    private static MethodHandle lookupMismatch()
+    {
+        try
+        {
+            return MethodHandles.publicLookup().findStatic(Arrays.class, "mismatch",
+                                                           MethodType.methodType(int.class, int[].class, int.class, int.class,
+                                                                                 int[].class, int.class, int.class));
+        }
+        catch (final ReflectiveOperationException e)
+        {
+            return null;
+        }
     }
 
     /**
@@ -167,211 +384,480 @@ public class ImageHelper
      *            The first image for the comparison
      * @param img2
      *            The second image for the comparison
+     * @param mask The pixels that are skipped and count as equal, null if nothing is masked
      * @param colorTolerance A threshold value that calculates the allowed difference in color between two pixels [0-1[
-     * @return Point[] array that contains the coordinates of pixels that are different
+     * @param failFast Stop at the first difference, the result then only holds this single difference
+     * @return DifferenceMap that contains the pixels that are different, null if the image sizes don't match
      */
-    protected static Point[] colorFuzzyCompare(final BufferedImage img1, final BufferedImage img2, final double colorTolerance)
+    protected static DifferenceMap colorFuzzyCompare(final BufferedImage img1, final BufferedImage img2, final BitMask mask,
+            final double colorTolerance, final boolean failFast)
     {
         if(img1.getWidth() != img2.getWidth() || img1.getHeight() != img2.getHeight()){
             return null;
         }
 
-        final ArrayList<Point> pixels = new ArrayList<>();
+        final ImageRaster raster1 = ImageRaster.of(img1);
+        final ImageRaster raster2 = ImageRaster.of(img2);
+        final int[] pixels1 = raster1.getPixels();
+        final int[] pixels2 = raster2.getPixels();
+        final int width = raster1.getWidth();
+        final int height = raster1.getHeight();
+
+        final DifferenceMap differences = new DifferenceMap(width, height);
+        final int squaredColorTolerance = calculateSquaredColorTolerance(colorTolerance);
 
-        for (int x = 0; x < img1.getWidth(); x++)
+        for (int y = 0; y < height; y++)
         {
-            for (int y = 0; y < img2.getHeight(); y++)
+            final int rowStart = y * width;
+
+            int spanStart = nextUnmasked(mask, y, 0, width);
+            while (spanStart < width)
             {
-                // calculates difference and adds the coordinates to
-                // the relevant ArrayList if the difference is above the
-                // colTolerance
-                final double difference = calculatePixelRGBDiff(img1.getRGB(x, y), img2.getRGB(x, y));
-                if (difference > colorTolerance)
+                final int spanEnd = nextMasked(mask, y, spanStart, width);
+                for (int x = spanStart; x < spanEnd; x++)
                 {
-                    pixels.add(new Point(x,y));
+                    // marks the pixel in the difference map if the
+                    // difference is above the colTolerance
+                    if (isColorDifferent(pixels1[rowStart + x], pixels2[rowStart + x], squaredColorTolerance))
+                    {
+                        differences.set(x, y);
+
+                        if (failFast)
+                        {
+                            return differences;
+                        }
+                    }
                 }
+
+                spanStart = nextUnmasked(mask, y, spanEnd, width);
             }
         }
 
-        return pixels.toArray(new Point[pixels.size()]);
+        return differences;
     }
 
     /**
      * Compares two images by partitioning them into blocks and checking the number of different pixels
      * in each block. Therefore the difference in color with the given color threshold is calculated.
      * If the number of pixels that are found as different in one block exceeds a number threshold the images
-     * are treated as differently and the pixel coordinates are saved as Point objects.
+     * are treated as differently and the pixels are marked in the resulting DifferenceMap.
+     * <p>
+     * Blocks at the right and bottom border that are smaller than the block dimension are checked as well, their
+     * threshold is calculated from their actual size.
+     * <p>
+     * The rows of blocks are spread over the pool set in {@link ComparisonPool}, or processed on the calling thread if
+     * there is none.
      * 
      * @param img1
      *            The first image for the comparison
      * @param img2
      *            The second image for the comparison
+     * @param mask The pixels that are skipped and count as equal, null if nothing is masked
      * @param colorTolerance A threshold value that calculates the allowed difference in color between two pixels [0-1[
      * @param pixelTolerance A threshold value that calculates the allowed number of different pixels per block [0-1[
      * @param fuzzyBlockDimension The x and y dimension d of one block of pixels(d*d), which are validated together
-     * @return Point[] array that contains the coordinates of pixels that are different
+     * @param failFast Stop as soon as one block exceeds the threshold, the result then only holds the differences
+     *            found in this block so far
+     * @return DifferenceMap that contains the pixels that are different, null if the image sizes don't match
      */
-    protected static Point[] fuzzyCompare(final BufferedImage img1, final BufferedImage img2, final double colorTolerance,
-            final double pixelTolerance, final int fuzzyBlockDimension)
+    protected static DifferenceMap fuzzyCompare(final BufferedImage img1, final BufferedImage img2, final BitMask mask,
+            final double colorTolerance, final double pixelTolerance, final int fuzzyBlockDimension, final boolean failFast)
     {
-        final ArrayList<Point> pixels = new ArrayList<>();
+        return fuzzyCompare(img1, img2, mask, colorTolerance, pixelTolerance, fuzzyBlockDimension, failFast, ComparisonPool.getPool());
+    }
 
-        // Calculate the number of blocks for each axis
-        final int horizontalBlockCount = img1.getWidth() / fuzzyBlockDimension;
-        final int verticalBlockCount = img1.getHeight() / fuzzyBlockDimension;
+    /**
+     * Same as {@link #fuzzyCompare(BufferedImage, BufferedImage, BitMask, double, double, int, boolean)}, but uses the given
+     * pool.
+     * 
+     * @param img1
+     *            The first image for the comparison
+     * @param img2
+     *            The second image for the comparison
+     * @param mask The pixels that are skipped and count as equal, null if nothing is masked
+     * @param colorTolerance A threshold value that calculates the allowed difference in color between two pixels [0-1[
+     * @param pixelTolerance A threshold value that calculates the allowed number of different pixels per block [0-1[
+     * @param fuzzyBlockDimension The x and y dimension d of one block of pixels(d*d), which are validated together
+     * @param failFast Stop as soon as one block exceeds the threshold
+     * @param pool The pool to spread the rows of blocks on, null to process them on the calling thread
+     * @return DifferenceMap that contains the pixels that are different, null if the image sizes don't match
+     */
+    protected static DifferenceMap fuzzyCompare(final BufferedImage img1, final BufferedImage img2, final BitMask mask,
+            final double colorTolerance, final double pixelTolerance, final int fuzzyBlockDimension, final boolean failFast,
+            final ForkJoinPool pool)
+    {
+        if(img1.getWidth() != img2.getWidth() || img1.getHeight() != img2.getHeight()){
+            return null;
+        }
 
-        // For each block
-        for (int x = 0; x < horizontalBlockCount; x++)
+        final ImageRaster raster1 = ImageRaster.of(img1);
+        final ImageRaster raster2 = ImageRaster.of(img2);
+        final int width = raster1.getWidth();
+        final int height = raster1.getHeight();
+
+        // Calculate the number of blocks for each axis, the last ones might be smaller
+        final int verticalBlockCount = (height + fuzzyBlockDimension - 1) / fuzzyBlockDimension;
+
+        final int squaredColorTolerance = calculateSquaredColorTolerance(colorTolerance);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final DifferenceMap differences = new DifferenceMap(width, height);
+
+        // Split the rows of blocks into tiles of roughly the same number of pixels
+        final int tileCount = pool == null ? 1 : Math.min(verticalBlockCount, Math.max(1, (width * height) / MIN_PIXELS_PER_TILE));
+        if (tileCount <= 1)
         {
-            for (int y = 0; y < verticalBlockCount; y++)
-            {
-                final ArrayList<Point> tempCoordinates = new ArrayList<>();
-                final int horizontalBlockWidth = calcBlockLength(fuzzyBlockDimension, x, img1.getWidth());
-                final int verticalBlockHeight = calcBlockLength(fuzzyBlockDimension, y, img1.getHeight());
-                final int differencesAllowed = (int) Math.floor(horizontalBlockWidth * verticalBlockHeight * pixelTolerance);
-                int differencesPerBlock = 0;
-
-                // For each pixel in this block, check for differences
-                for (int w = 0; w < horizontalBlockWidth; w++)
-                {
-                    for (int h = 0; h < verticalBlockHeight; h++)
-                    {
-                        final int xCoord = x * fuzzyBlockDimension + w;
-                        final int yCoord = y * fuzzyBlockDimension + h;
+            new FuzzyTile(raster1, raster2, mask, squaredColorTolerance, pixelTolerance, fuzzyBlockDimension, failFast, failed, 0,
+                          verticalBlockCount, differences).compute();
+            return differences;
+        }
 
-                        // calculate the difference and draw the differenceImage
-                        // if needed
-                        final double difference = calculatePixelRGBDiff(img1.getRGB(xCoord, yCoord), img2.getRGB(xCoord, yCoord));
+        final List<FuzzyTile> tiles = new ArrayList<>(tileCount);
+        for (int i = 0; i < tileCount; i++)
+        {
+            final int firstBlockRow = (int) ((long) verticalBlockCount * i / tileCount);
+            final int lastBlockRow = (int) ((long) verticalBlockCount * (i + 1) / tileCount);
+            final int bandHeight = Math.min(height, lastBlockRow * fuzzyBlockDimension) - firstBlockRow * fuzzyBlockDimension;
 
-                        // If there is a notable difference
-                        if (difference > colorTolerance)
-                        {
+            tiles.add(new FuzzyTile(raster1, raster2, mask, squaredColorTolerance, pixelTolerance, fuzzyBlockDimension, failFast, failed,
+                                    firstBlockRow, lastBlockRow, new DifferenceMap(width, bandHeight)));
+        }
 
-                            // Increment differencesPerBlock and add the
-                            // coordinates to the
-                            // temporary arraylists
-                            differencesPerBlock++;
-                            tempCoordinates.add(new Point(xCoord,yCoord));
-                        }
-                    }
-                }
+        try
+        {
+            pool.invoke(new RecursiveAction()
+            {
+                private static final long serialVersionUID = 1L;
 
-                // If the number of differences exceeds the threshold, save the coordinates of the pixels
-                // that are different
-                if (differencesPerBlock > differencesAllowed)
+                @Override
+                protected void compute()
                 {
-                    pixels.addAll(tempCoordinates);
+                    invokeAll(tiles);
                 }
-
-                // clear the temporary coordinates
-                tempCoordinates.clear();
+            });
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // the pool was replaced in the meantime
+            for (final FuzzyTile tile : tiles)
+            {
+                tile.compute();
             }
         }
 
-        return pixels.toArray(new Point[pixels.size()]);
+        // every tile owns its own band, so they are merged without any locking
+        for (final FuzzyTile tile : tiles)
+        {
+            differences.insert(tile.differences, tile.firstBlockRow * fuzzyBlockDimension);
+        }
+
+        return differences;
     }
 
     /**
-     * Scales a binary image down to the given size. Does not innately preserve Width/ Height ratio. Used in closeImage.
-     * Divides the bigger image into blocks. If there are some pixels leftover, the last blocks gets them, no matter how
-     * many they are. It sets a pixel to the foreground color if any any pixel in the corresponding block had the
-     * foreground color.
+     * Same as {@link #fuzzyCompare(BufferedImage, BufferedImage, BitMask, double, double, int, boolean)}, but the blocks can
+     * overlap. They are placed every fuzzyBlockStride pixels, so a difference that straddles the border between two
+     * blocks is also counted as a whole by a block in between. With a stride of zero or at least the block dimension
+     * the blocks don't overlap.
+     * <p>
+     * The different pixels are counted with a {@link SummedAreaTable}, so checking a block costs the same no matter
+     * how large it is and how much the blocks overlap.
      * 
-     * @param img The original image
-     * @param newWidth The width of the new image after scaling
-     * @param newHeight The height of the new image after scaling
-     * @param scalingFactor The scaling factor for the image size
-     * @param rgbForegroundColor The foreground color
-     * @return A downscaled BufferedImage copy of the original image
+     * @param img1
+     *            The first image for the comparison
+     * @param img2
+     *            The second image for the comparison
+     * @param mask The pixels that are skipped and count as equal, null if nothing is masked
+     * @param colorTolerance A threshold value that calculates the allowed difference in color between two pixels [0-1[
+     * @param pixelTolerance A threshold value that calculates the allowed number of different pixels per block [0-1[
+     * @param fuzzyBlockDimension The x and y dimension d of one block of pixels(d*d), which are validated together
+     * @param fuzzyBlockStride The distance between the start of two neighboring blocks
+     * @param failFast Stop as soon as one block exceeds the threshold, the result then only holds the differences
+     *            of this block
+     * @return DifferenceMap that contains the pixels that are different, null if the image sizes don't match
      */
-    protected static BufferedImage scaleDownMaskImage(final BufferedImage img, final int newWidth, final int newHeight,
-            final int scalingFactor, final int rgbForegroundColor)
+    protected static DifferenceMap fuzzyCompare(final BufferedImage img1, final BufferedImage img2, final BitMask mask,
+            final double colorTolerance, final double pixelTolerance, final int fuzzyBlockDimension, final int fuzzyBlockStride,
+            final boolean failFast)
     {
+        if (fuzzyBlockStride <= 0 || fuzzyBlockStride >= fuzzyBlockDimension)
+        {
+            return fuzzyCompare(img1, img2, mask, colorTolerance, pixelTolerance, fuzzyBlockDimension, failFast);
+        }
+
+        // all pixels that are different on their own
+        final DifferenceMap differentPixels = colorFuzzyCompare(img1, img2, mask, colorTolerance, false);
+        if (differentPixels == null || differentPixels.isEmpty())
+        {
+            return differentPixels;
+        }
 
-        final BufferedImage scaledImage = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_ARGB);
-        boolean hasForegroundColor;
+        final int width = differentPixels.getWidth();
+        final int height = differentPixels.getHeight();
 
-        // Go through every pixel of the scaled image
-        for (int w = 0; w < scaledImage.getWidth(); w++)
+        final int[] blockStartsX = calcBlockStarts(width, fuzzyBlockDimension, fuzzyBlockStride);
+        final int[] blockStartsY = calcBlockStarts(height, fuzzyBlockDimension, fuzzyBlockStride);
+
+        final SummedAreaTable table = new SummedAreaTable(differentPixels,
+                                                          calcBlockBorders(blockStartsX, fuzzyBlockDimension, width),
+                                                          calcBlockBorders(blockStartsY, fuzzyBlockDimension, height));
+
+        final DifferenceMap differences = new DifferenceMap(width, height);
+
+        for (final int y0 : blockStartsY)
         {
-            for (int h = 0; h < scaledImage.getHeight(); h++)
+            final int y1 = Math.min(height, y0 + fuzzyBlockDimension);
+
+            for (final int x0 : blockStartsX)
             {
-                hasForegroundColor = false;
+                final int x1 = Math.min(width, x0 + fuzzyBlockDimension);
+                final int differencesAllowed = (int) Math.floor((x1 - x0) * (y1 - y0) * pixelTolerance);
 
-                // Check if the corresponding block in the image to scale has a
-                // black pixel
-                for (int x = w * scalingFactor; x < (w + 1) * scalingFactor; x++)
+                // If the number of differences exceeds the threshold, save the pixels that are different
+                if (table.count(x0, y0, x1, y1) > differencesAllowed)
                 {
-                    for (int y = h * scalingFactor; y < (h + 1) * scalingFactor; y++)
+                    for (int y = y0; y < y1; y++)
                     {
-                        // Check if it isn't over the border
-                        if (x < img.getWidth() && y < img.getHeight())
+                        for (int x = differentPixels.nextSetInRow(y, x0); x >= 0 && x < x1; x = differentPixels.nextSetInRow(y, x + 1))
                         {
-                            if (img.getRGB(x, y) == rgbForegroundColor)
-                            {
-                                hasForegroundColor = true;
-                                break;
-                            }
+                            differences.set(x, y);
                         }
                     }
-                }
 
-                // And set the pixel of the scaled image black if the
-                // corresponding block had any black pixel
-                if (hasForegroundColor)
-                {
-                    scaledImage.setRGB(w, h, rgbForegroundColor);
+                    if (failFast)
+                    {
+                        return differences;
+                    }
                 }
             }
         }
-        return scaledImage;
+
+        return differences;
     }
 
     /**
-     * Scales a binary image up to the given size. Does not innately preserve Width/ Height ratio. Used in closeImage.
-     * Divides the bigger image into blocks. Sets all the pixels in the block to the foreground color if the
-     * corresponding pixel has the foreground color. If there are some pixels leftover, the last blocks gets them, no
-     * matter how many there are.
+     * Calculates where the blocks along one axis start. A new block is only placed if the previous one doesn't reach
+     * the end of the axis yet, so the last block can be smaller, but is never completely covered by the one before.
      * 
-     * @param img The original image
-     * @param newWidth The width of the new image after scaling
-     * @param newHeight The height of the new image after scaling
-     * @param scalingFactor The scaling factor for the image size
-     * @param rgbForegroundColor The foreground color
-     * @return A upscaled BufferedImage copy of the original image
+     * @param imageSpan the width/ height of the image
+     * @param fuzzyBlockDimension the length of a block
+     * @param fuzzyBlockStride the distance between the starts of two blocks
+     * @return the start coordinates in ascending order
+     */
+    protected static int[] calcBlockStarts(final int imageSpan, final int fuzzyBlockDimension, final int fuzzyBlockStride)
+    {
+        final int count = imageSpan <= fuzzyBlockDimension ? 1
+                                                           : 1 + (imageSpan - fuzzyBlockDimension + fuzzyBlockStride - 1) / fuzzyBlockStride;
+        final int[] starts = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            starts[i] = i * fuzzyBlockStride;
+        }
+
+        return starts;
+    }
+
+    /**
+     * Collects all coordinates along one axis at which a block starts or ends
+     * 
+     * @param blockStarts the start coordinates of the blocks
+     * @param fuzzyBlockDimension the length of a block
+     * @param imageSpan the width/ height of the image
+     * @return the distinct borders in ascending order, including 0 and the image span
      */
-    protected static BufferedImage scaleUpMaskImage(final BufferedImage img, final int newWidth, final int newHeight,
-            final int scalingFactor, final int rgbForegroundColor)
+    protected static int[] calcBlockBorders(final int[] blockStarts, final int fuzzyBlockDimension, final int imageSpan)
     {
+        final boolean[] isBorder = new boolean[imageSpan + 1];
+        isBorder[0] = true;
+        isBorder[imageSpan] = true;
 
-        final BufferedImage scaledImage = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_ARGB);
+        for (final int start : blockStarts)
+        {
+            isBorder[start] = true;
+            isBorder[Math.min(imageSpan, start + fuzzyBlockDimension)] = true;
+        }
 
-        // Go through every pixel of the image to scale
-        for (int w = 0; w < img.getWidth(); w++)
+        int count = 0;
+        for (final boolean border : isBorder)
         {
-            for (int h = 0; h < img.getHeight(); h++)
+            count += border ? 1 : 0;
+        }
+
+        final int[] borders = new int[count];
+        for (int i = 0, j = 0; i <= imageSpan; i++)
+        {
+            if (isBorder[i])
             {
-                // Check if it has the foreground color
-                if (img.getRGB(w, h) == rgbForegroundColor)
+                borders[j++] = i;
+            }
+        }
+
+        return borders;
+    }
+
+    /**
+     * A horizontal band of rows of blocks, which is checked by the fuzzy comparison in one go. The differences found
+     * are written to its own map, with the first row of the band as row 0.
+     */
+    private static class FuzzyTile extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final ImageRaster raster1;
+
+        private final ImageRaster raster2;
+
+        private final BitMask mask;
+
+        private final int squaredColorTolerance;
+
+        private final double pixelTolerance;
+
+        private final int fuzzyBlockDimension;
+
+        private final boolean failFast;
+
+        private final AtomicBoolean failed;
+
+        private final int firstBlockRow;
+
+        private final int lastBlockRow;
+
+        private final DifferenceMap differences;
+
+        FuzzyTile(final ImageRaster raster1, final ImageRaster raster2, final BitMask mask, final int squaredColorTolerance,
+                  final double pixelTolerance, final int fuzzyBlockDimension, final boolean failFast, final AtomicBoolean failed, final int firstBlockRow,
+                  final int lastBlockRow, final DifferenceMap differences)
+        {
+            this.raster1 = raster1;
+            this.raster2 = raster2;
+            this.mask = mask;
+            this.squaredColorTolerance = squaredColorTolerance;
+            this.pixelTolerance = pixelTolerance;
+            this.fuzzyBlockDimension = fuzzyBlockDimension;
+            this.failFast = failFast;
+            this.failed = failed;
+            this.firstBlockRow = firstBlockRow;
+            this.lastBlockRow = lastBlockRow;
+            this.differences = differences;
+        }
+
+        @Override
+        protected void compute()
+        {
+            final int[] pixels1 = raster1.getPixels();
+            final int[] pixels2 = raster2.getPixels();
+            final int width = raster1.getWidth();
+            final int height = raster1.getHeight();
+            final int yOffset = firstBlockRow * fuzzyBlockDimension;
+
+            final int horizontalBlockCount = (width + fuzzyBlockDimension - 1) / fuzzyBlockDimension;
+
+            // The differences found and allowed per block of the current row of blocks
+            final int[] differencesPerBlock = new int[horizontalBlockCount];
+            final int[] differencesAllowed = new int[horizontalBlockCount];
+
+            // Pixels of the current row of blocks that have a notable difference
+            final boolean[] differentPixels = new boolean[width * fuzzyBlockDimension];
+
+            // For each row of blocks
+            for (int y = firstBlockRow; y < lastBlockRow; y++)
+            {
+                if (failFast && failed.get())
+                {
+                    return;
+                }
+
+                final int verticalBlockHeight = calcBlockLength(fuzzyBlockDimension, y, height);
+                Arrays.fill(differencesPerBlock, 0);
+                for (int x = 0; x < horizontalBlockCount; x++)
+                {
+                    final int horizontalBlockWidth = calcBlockLength(fuzzyBlockDimension, x, width);
+                    differencesAllowed[x] = (int) Math.floor(horizontalBlockWidth * verticalBlockHeight * pixelTolerance);
+                }
+
+                // Check every pixel row of the blocks for differences
+                for (int h = 0; h < verticalBlockHeight; h++)
                 {
-                    // And set every pixel in the corresponding block true if it
-                    // does
-                    for (int x = w * scalingFactor; x < w * scalingFactor + scalingFactor; x++)
+                    final int yCoord = y * fuzzyBlockDimension + h;
+                    final int rowStart = yCoord * width;
+                    final int flagStart = h * width;
+
+                    // masked pixels are equal, but still belong to the area of their block
+                    int spanStart = nextUnmasked(mask, yCoord, 0, width);
+                    Arrays.fill(differentPixels, flagStart, flagStart + spanStart, false);
+                    while (spanStart < width)
                     {
-                        for (int y = h * scalingFactor; y < h * scalingFactor + scalingFactor; y++)
+                        final int spanEnd = nextMasked(mask, yCoord, spanStart, width);
+                        for (int xCoord = spanStart; xCoord < spanEnd; xCoord++)
                         {
-                            // So long as it doesn't go over the border
-                            if (x < scaledImage.getWidth() && y < scaledImage.getHeight())
+                            // If there is a notable difference
+                            final boolean different = isColorDifferent(pixels1[rowStart + xCoord], pixels2[rowStart + xCoord],
+                                                                       squaredColorTolerance);
+                            differentPixels[flagStart + xCoord] = different;
+                            if (different)
                             {
-                                scaledImage.setRGB(x, y, rgbForegroundColor);
+                                differencesPerBlock[xCoord / fuzzyBlockDimension]++;
+                            }
+                        }
+
+                        spanStart = nextUnmasked(mask, yCoord, spanEnd, width);
+                        Arrays.fill(differentPixels, flagStart + spanEnd, flagStart + spanStart, false);
+                    }
+
+                    // The counts only grow, so a block that is over the limit already stays there
+                    if (failFast)
+                    {
+                        for (int x = 0; x < horizontalBlockCount; x++)
+                        {
+                            if (differencesPerBlock[x] > differencesAllowed[x])
+                            {
+                                markBlock(differentPixels, x, y, calcBlockLength(fuzzyBlockDimension, x, width), h + 1, yOffset);
+                                failed.set(true);
+                                return;
                             }
                         }
                     }
                 }
+
+                // If the number of differences exceeds the threshold, save the coordinates of the pixels
+                // that are different
+                for (int x = 0; x < horizontalBlockCount; x++)
+                {
+                    if (differencesPerBlock[x] > differencesAllowed[x])
+                    {
+                        markBlock(differentPixels, x, y, calcBlockLength(fuzzyBlockDimension, x, width), verticalBlockHeight, yOffset);
+                    }
+                }
             }
         }
 
-        return scaledImage;
+        /**
+         * Transfers the flagged pixels of one block from the flags of its row of blocks into the difference map
+         * 
+         * @param differentPixels The flags of the current row of blocks, one row of pixels after the other
+         * @param blockX Index of the block in its row
+         * @param blockY Index of the row of blocks
+         * @param blockWidth The actual width of the block
+         * @param blockHeight The number of pixel rows to transfer
+         * @param yOffset The image row that is row 0 of the difference map
+         */
+        private void markBlock(final boolean[] differentPixels, final int blockX, final int blockY, final int blockWidth,
+                               final int blockHeight, final int yOffset)
+        {
+            final int width = raster1.getWidth();
+
+            for (int h = 0; h < blockHeight; h++)
+            {
+                for (int w = 0; w < blockWidth; w++)
+                {
+                    final int xCoord = blockX * fuzzyBlockDimension + w;
+                    if (differentPixels[h * width + xCoord])
+                    {
+                        differences.set(xCoord, blockY * fuzzyBlockDimension + h - yOffset);
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -381,16 +867,17 @@ public class ImageHelper
      * @param img The original image
      * @param width The width of the new image
      * @param height The height of the new image
-     * @return A new BufferedImage that holds the original image in the top left corner and the rest is filled with black
+     * @return A new BufferedImage that holds the original image in the top left corner and the rest is filled with black,
+     *         its buffer is taken from the {@link RasterPool}
      */
     protected static BufferedImage increaseImageSize(final BufferedImage img, final int width, final int height)
     {
-        final BufferedImage newImg = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        final Graphics g = newImg.createGraphics();
+        final BufferedImage newImg = RasterPool.createImage(width, height);
 
-        g.setColor(new Color(0, 0, 0, 0));
-        g.fillRect(0, 0, width, height);
+        // a pooled buffer still holds the pixels of its last image
+        Arrays.fill(ImageRaster.of(newImg).getPixels(), 0);
 
+        final Graphics g = newImg.createGraphics();
         g.drawImage(img, 0, 0, null);
         g.dispose();
         return newImg;
@@ -414,229 +901,204 @@ public class ImageHelper
     }
 
     /**
-     * Overlays the black areas of one image over another image. Doesn't actually use transparency.
-     * @param image The original image
-     * @param overlay
-     *            the image that will be placed over the original image
-     * @param rgbForegroundColor The color that is used for the originally black areas
-     * @return A BufferedImage copy of the original image in which the black areas of the overlay are marked
+     * Creates and returns an eroded mask, using the algorithm from morphological image processing.
+     * <p>
+     * Assumes the structuring element is filled with ones and thereby only needs it's width and height. The origin is
+     * placed in the middle of the structuring element. If width and/ or height are even, they are incremented to make
+     * sure there is a middle pixel. Pixels outside of the mask don't prevent the structuring element from fitting.
+     * <p>
+     * The structuring element is separable, so the rows are eroded first and the columns afterwards. Both passes take
+     * the same time no matter how large the structuring element is.
+     * 
+     * @param mask
+     *            the mask to erode
+     * @param structElementWidth Width of the structure element mask
+     * @param structElementHeight Height of the structure element mask
+     * @return The eroded mask
      */
-    protected static BufferedImage overlayMaskImage(final BufferedImage image, final BufferedImage overlay,
-            final int rgbForegroundColor)
+    protected static BitMask erodeMask(final BitMask mask, final int structElementWidth, final int structElementHeight)
     {
-        final BufferedImage copy = copyImage(image);
+        final int width = mask.getWidth();
+        final int radiusX = structElementWidth / 2;
 
-        // Go through every pixel of the image
-        for (int x = 0; x < copy.getWidth(); x++)
+        // Every run of set pixels shrinks by the radius on both sides, unless it touches the border of the mask
+        final BitMask erodedRows = new BitMask(width, mask.getHeight());
+        for (int y = 0; y < mask.getHeight(); y++)
         {
-            for (int y = 0; y < copy.getHeight(); y++)
+            for (int runStart = mask.nextSetInRow(y, 0); runStart >= 0; )
             {
-                if (overlay.getRGB(x, y) == rgbForegroundColor)
+                final int nextClear = mask.nextClearInRow(y, runStart);
+                final int runEnd = nextClear < 0 ? width : nextClear;
+
+                final int from = runStart == 0 ? 0 : runStart + radiusX;
+                final int to = runEnd == width ? width : runEnd - radiusX;
+                if (from < to)
                 {
-                    copy.setRGB(x, y, rgbForegroundColor);
+                    erodedRows.fillRect(from, y, to - from, 1);
                 }
+
+                runStart = mask.nextSetInRow(y, runEnd);
             }
         }
 
-        return copy;
+        return combineColumns(erodedRows, structElementHeight / 2, true);
     }
 
     /**
-     * Creates and returns an erosion image, using the algorithm from morphological image processing.
+     * Creates and returns a dilated mask using the algorithm for morphological image processing.
      * <p>
      * Assumes the structuring element is filled with ones and thereby only needs it's width and height. The origin is
      * placed in the middle of the structuring element. If width and/ or height are even, they are incremented to make
      * sure there is a middle pixel.
+     * <p>
+     * The structuring element is separable, so the rows are dilated first and the columns afterwards. Both passes take
+     * the same time no matter how large the structuring element is.
      * 
-     * @param img
-     *            the image to erode
-     * @param structElementWidth Width of the structure element mask
-     * @param structElementHeight Height of the structure element mask
-     * @param rgbForegroundColor Foreground color
-     * @param rgbBackgroundColor Background color
-     * @return The eroded image as BufferedImage
+     * @param mask
+     *            the mask to dilate
+     * @param structElementWidth the width of the structure element mask
+     * @param structElementHeight the height of the structure element mask
+     * @return the dilated mask
      */
-    protected static BufferedImage erodeImage(final BufferedImage img, int structElementWidth, int structElementHeight,
-            final int rgbForegroundColor, final int rgbBackgroundColor)
+    protected static BitMask dilateMask(final BitMask mask, final int structElementWidth, final int structElementHeight)
     {
+        final int width = mask.getWidth();
+        final int radiusX = structElementWidth / 2;
 
-        final BufferedImage erosionedImage = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_ARGB);
-
-        boolean fits;
-
-        // The origin of the structuring element will be it's middle pixel
-        // Therefore make sure there is a middle pixel, ie make width and height
-        // uneven.
-        if ((structElementWidth % 2) == 0)
+        // Every run of set pixels grows by the radius on both sides, fillRect stays inside the borders
+        final BitMask dilatedRows = new BitMask(width, mask.getHeight());
+        for (int y = 0; y < mask.getHeight(); y++)
         {
-            structElementWidth++;
-        }
-        if ((structElementHeight % 2) == 0)
-        {
-            structElementHeight++;
-        }
-
-        // Metaphorically places the structure element
-        // In every possible position
-        for (int w = 0; w < img.getWidth(); w++)
-        {
-            for (int h = 0; h < img.getHeight(); h++)
+            for (int runStart = mask.nextSetInRow(y, 0); runStart >= 0; )
             {
+                final int nextClear = mask.nextClearInRow(y, runStart);
+                final int runEnd = nextClear < 0 ? width : nextClear;
 
-                fits = true;
-
-                // The origin of the structuring element is it's middle pixel
-                for (int x = w - (structElementWidth / 2); x <= w + (structElementWidth / 2); x++)
-                {
-                    for (int y = h - (structElementHeight / 2); y <= h + (structElementHeight / 2); y++)
-                    {
-
-                        // As long as the pixels not over the border
-                        if (x >= 0 && x < img.getWidth() && y >= 0 && y < img.getHeight())
-                        {
+                dilatedRows.fillRect(runStart - radiusX, y, runEnd - runStart + 2 * radiusX, 1);
 
-                            // Assumes all the pixels in the structureImage are
-                            // 1. If the pixel does not have the right color
-                            // black, set fits false, set the pixel in the
-                            // erosionImage to the foreground color and break
-                            // the loop
-                            if (img.getRGB(x, y) != rgbForegroundColor)
-                            {
-                                fits = false;
-                                erosionedImage.setRGB(w, h, rgbBackgroundColor);
-                                break;
-                            }
-                        }
-                    }
-                }
-
-                // After every pixel was checked and if fits is true
-                // Set the pixel in the erosionImage black
-                // Some room for performance increase with a better break?
-                if (fits)
-                {
-                    erosionedImage.setRGB(w, h, rgbForegroundColor);
-                }
+                runStart = mask.nextSetInRow(y, runEnd);
             }
         }
-        return erosionedImage;
+
+        return combineColumns(dilatedRows, structElementHeight / 2, false);
     }
 
     /**
-     * Creates and returns a dilation image using the algorithm for morphological image processing.
+     * Combines every row of a mask with the rows within the given radius above and below it, word by word. This is
+     * the vertical pass of erosion (AND) and dilation (OR). Rows outside of the mask don't change the result.
      * <p>
-     * Assumes the structuring element is filled with ones and thereby only needs it's width and height. The origin is
-     * placed in the middle of the structuring element. If width and/ or height are even, they are incremented to make
-     * sure there is a middle pixel.
-     * <p>
-     * Uses the rgbForegroundColor and rgbBackgroundColor instance variables to determine the background and the
-     * foreground color.
+     * Uses the van Herk/ Gil-Werman scheme: the rows are split into segments of one window length, and the running
+     * combination from the start and from the end of each segment is computed once. Every window covers the end of one
+     * segment and the start of the next, so it is combined from just two precomputed values.
      * 
-     * @param img
-     *            the image to dilate
-     * @param structElementWidth the width of the structure element mask
-     * @param structElementHeight the height of the structure element mask
-     * @param rgbForegroundColor the foreground color
-     * @param rgbBackgroundColor the background color
-     * @return the dilated image as BufferedImage
+     * @param mask The mask to combine
+     * @param radius The number of rows above and below that are combined with each row
+     * @param and true to combine the rows with AND, false to combine them with OR
+     * @return the combined mask
      */
-    protected static BufferedImage dilateImage(final BufferedImage img, int structElementWidth, int structElementHeight,
-            final int rgbForegroundColor, final int rgbBackgroundColor)
+    protected static BitMask combineColumns(final BitMask mask, final int radius, final boolean and)
     {
-
-        final BufferedImage dilationImage = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        boolean hits;
-
-        // The origin of the structuring element will be it's middle pixel
-        // Therefore make sure there is a middle pixel, ie make width and height
-        // uneven.
-        if ((structElementWidth % 2) == 0)
-        {
-            structElementWidth++;
-        }
-        if ((structElementHeight % 2) == 0)
+        if (radius == 0)
         {
-            structElementHeight++;
+            return mask;
         }
 
-        // Metaphorically places the structure element
-        // In every possible position
-        for (int w = 0; w < img.getWidth(); w++)
+        final int height = mask.getHeight();
+        final int wordsPerRow = mask.getWordsPerRow();
+        final long[] source = mask.getWords();
+
+        final BitMask combined = new BitMask(mask.getWidth(), height);
+        final long[] target = combined.getWords();
+
+        // the rows outside are padded with the neutral element of the combination
+        final long outside = and ? -1L : 0L;
+        final int window = 2 * radius + 1;
+        final int paddedHeight = height + 2 * radius;
+        final long[] fromSegmentStart = new long[paddedHeight];
+        final long[] toSegmentEnd = new long[paddedHeight];
+
+        for (int column = 0; column < wordsPerRow; column++)
         {
-            for (int h = 0; h < img.getHeight(); h++)
+            for (int i = 0; i < paddedHeight; i++)
             {
+                final int y = i - radius;
+                final long word = y >= 0 && y < height ? source[y * wordsPerRow + column] : outside;
 
-                hits = false;
-
-                // Check every pixel of the structured element
-                // against the pixel it metaphorically overlaps
-                // There might be some room for performance increase here
-                // The origin of the structuring element is it's middle pixel
-                for (int x = w - (structElementWidth / 2); x <= w + (structElementWidth / 2); x++)
+                if (i % window == 0)
                 {
-                    for (int y = h - (structElementHeight / 2); y <= h + (structElementHeight / 2); y++)
-                    {
+                    fromSegmentStart[i] = word;
+                }
+                else
+                {
+                    fromSegmentStart[i] = and ? fromSegmentStart[i - 1] & word : fromSegmentStart[i - 1] | word;
+                }
+            }
 
-                        // As long as the pixels don't go over the border
-                        if (x >= 0 && x < img.getWidth() && y >= 0 && y < img.getHeight())
-                        {
+            for (int i = paddedHeight - 1; i >= 0; i--)
+            {
+                final int y = i - radius;
+                final long word = y >= 0 && y < height ? source[y * wordsPerRow + column] : outside;
 
-                            // Assumes all the pixels in the structureImage are
-                            // 1. If the pixel is black, set hits true, set the
-                            // pixel in the dilationImage to the foreground
-                            // color
-                            // and break the loop
-                            if (img.getRGB(x, y) == rgbForegroundColor)
-                            {
-                                hits = true;
-                                dilationImage.setRGB(w, h, rgbForegroundColor);
-                            }
-                        }
-                    }
+                if (i % window == window - 1 || i == paddedHeight - 1)
+                {
+                    toSegmentEnd[i] = word;
                 }
-
-                // After every pixel was checked and if hits is false
-                // Set the pixel in the dilationImage to he background color
-                if (!hits)
+                else
                 {
-                    dilationImage.setRGB(w, h, rgbBackgroundColor);
+                    toSegmentEnd[i] = and ? toSegmentEnd[i + 1] & word : toSegmentEnd[i + 1] | word;
                 }
             }
+
+            // the window of row y covers the padded rows y to y + window - 1
+            for (int y = 0; y < height; y++)
+            {
+                final long first = toSegmentEnd[y];
+                final long last = fromSegmentStart[y + window - 1];
+                target[y * wordsPerRow + column] = and ? first & last : first | last;
+            }
         }
-        return dilationImage;
+
+        return combined;
     }
 
     /**
-     * Shrinks an image using the shrinkImage method, closes it and scales it back up again for performance reasons.
-     * Depending on the images size and the compressionfactor, it may still be very performance heavy. Closes an image
-     * using the dilation and erosion methods.
+     * Closes a mask using the dilation and erosion methods. Gaps between masked areas that are smaller than the
+     * structuring element are filled, while the outer shape of the areas stays the same. Works on the full
+     * resolution in linear time.
      * 
-     * @param img
-     *            the image to close
+     * @param mask
+     *            the mask to close
      * @param structElementWidth
-     *            the width of the structure element for dilation and erosion
+     *            the width of the structure element for dilation and erosion in pixels
      * @param structElementHeight
-     *            the height of the structure element for dilation and erosion
-     * @param rgbForegroundColor The foreground color for the marking
-     * @param rgbBackgroundColor The background color for the marking
-     * @return the closed image
+     *            the height of the structure element for dilation and erosion in pixels
+     * @return the closed mask
      */
-    protected static BufferedImage closeImage(BufferedImage img, final int structElementWidth, final int structElementHeight,
-            final int rgbForegroundColor, final int rgbBackgroundColor)
+    protected static BitMask closeMask(final BitMask mask, final int structElementWidth, final int structElementHeight)
     {
+        // The origin of the structuring element is it's middle pixel, so even sizes are rounded up to uneven ones,
+        // i.e. the radius stays size / 2
+        final BitMask dilatedMask = dilateMask(mask, structElementWidth, structElementHeight);
+        return erodeMask(dilatedMask, structElementWidth, structElementHeight);
+    }
 
-        final int scaledWidth = (int) Math.ceil(img.getWidth() / SCALING_FACTOR);
-        final int scaledHeight = (int) Math.ceil(img.getHeight() / SCALING_FACTOR);
-
-        // Scale the image for performance reasons.
-        BufferedImage shrunkImg = scaleDownMaskImage(img, scaledWidth, scaledHeight, SCALING_FACTOR, rgbForegroundColor);
-
-        // Close it
-        shrunkImg = dilateImage(shrunkImg, structElementWidth, structElementHeight, rgbForegroundColor, rgbBackgroundColor);
-        shrunkImg = erodeImage(shrunkImg, structElementWidth, structElementHeight, rgbForegroundColor, rgbBackgroundColor);
-        // Scale the image back
-        img = scaleUpMaskImage(shrunkImg, img.getWidth(), img.getHeight(), SCALING_FACTOR, rgbForegroundColor);
-        return img;
+    /**
+     * Closes a mask with a structuring element given in blocks of {@link #CLOSE_BLOCK_SIZE} pixels, the unit of the
+     * mask close settings. The element reaches as far as it did when masks were closed on a copy scaled down by the
+     * block size.
+     * 
+     * @param mask
+     *            the mask to close
+     * @param structElementBlocksX
+     *            the width of the structure element in blocks
+     * @param structElementBlocksY
+     *            the height of the structure element in blocks
+     * @return the closed mask
+     */
+    protected static BitMask closeMaskInBlocks(final BitMask mask, final int structElementBlocksX, final int structElementBlocksY)
+    {
+        return closeMask(mask, (structElementBlocksX / 2) * 2 * CLOSE_BLOCK_SIZE + 1,
+                         (structElementBlocksY / 2) * 2 * CLOSE_BLOCK_SIZE + 1);
     }
 
 
@@ -647,30 +1109,34 @@ public class ImageHelper
      * If markingX of markingY are 1, it will simply mark the detected differences.
      *
      * @param image the original image for which the differences were found
-     * @param pixels
-     *            the array with the differences.
+     * @param differences
+     *            the map with the differences.
      * @param markingSizeX Length of the marker on the x axis
      * @param markingSizeY Length of the marker on the y axis
-     * @return Copy of the original image with marked pixels
+     * @return Copy of the original image with marked pixels, null if there are no differences
      */
-    protected static BufferedImage markDifferencesWithBoxes(final BufferedImage image, final Point[] pixels,
+    protected static BufferedImage markDifferencesWithBoxes(final BufferedImage image, final DifferenceMap differences,
             final int markingSizeX, final int markingSizeY)
     {
-        if (pixels == null)
+        if (differences == null || differences.isEmpty())
         {
             return null;
         }
 
         final BufferedImage copy = copyImage(image);
+        final Rectangle bounds = differences.getBounds();
 
         // Check if markingX or markingY are 1. If they are, just mark every
         // different pixel,
         // don't bother with rectangles
         if (markingSizeX == 1 || markingSizeY == 1)
         {
-            for (final Point pixel : pixels)
+            for (int y = bounds.y; y < bounds.y + bounds.height; y++)
             {
-                colorPixel(copy, pixel.x, pixel.y, null);
+                for (int x = differences.nextSetInRow(y, bounds.x); x >= 0; x = differences.nextSetInRow(y, x + 1))
+                {
+                    colorPixel(copy, x, y, null);
+                }
             }
 
             return copy;
@@ -687,18 +1153,26 @@ public class ImageHelper
 
         int xBlock, yBlock, subImageWidth, subImageHeight;
 
-        for (final Point pixel : pixels)
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++)
         {
-            xBlock = pixel.x / markingSizeX;
-            yBlock = pixel.y / markingSizeY;
-
-            subImageWidth = calcBlockLength(markingSizeX, xBlock, imageWidth);
-            subImageHeight = calcBlockLength(markingSizeY, yBlock, imageHeight);
+            yBlock = y / markingSizeY;
 
-            if (!markedBlocks[xBlock][yBlock])
+            int x = differences.nextSetInRow(y, bounds.x);
+            while (x >= 0)
             {
-                drawBorders(copy, xBlock, yBlock, markingSizeX, markingSizeY, subImageWidth, subImageHeight, null);
-                markedBlocks[xBlock][yBlock] = true;
+                xBlock = x / markingSizeX;
+
+                if (!markedBlocks[xBlock][yBlock])
+                {
+                    subImageWidth = calcBlockLength(markingSizeX, xBlock, imageWidth);
+                    subImageHeight = calcBlockLength(markingSizeY, yBlock, imageHeight);
+
+                    drawBorders(copy, xBlock, yBlock, markingSizeX, markingSizeY, subImageWidth, subImageHeight, null);
+                    markedBlocks[xBlock][yBlock] = true;
+                }
+
+                // further differences in this block and row don't change anything
+                x = differences.nextSetInRow(y, (xBlock + 1) * markingSizeX);
             }
         }
 
@@ -712,21 +1186,22 @@ public class ImageHelper
      * If markingX of markingY are 1, it will simply mark the detected differences.
      *
      * @param image the original image for which the differences were found
-     * @param pixels
-     *            the array with the differences.
+     * @param differences
+     *            the map with the differences.
      * @param markingSizeX Length of the marker on the x axis
      * @param markingSizeY Length of the marker on the y axis
-     * @return Copy of the original image with marked pixels
+     * @return Copy of the original image with marked pixels, null if there are no differences
      */
-    protected static BufferedImage markDifferencesWithAMarker(final BufferedImage image, final Point[] pixels,
+    protected static BufferedImage markDifferencesWithAMarker(final BufferedImage image, final DifferenceMap differences,
             final int markingSizeX, final int markingSizeY)
     {
-        if (pixels == null)
+        if (differences == null || differences.isEmpty())
         {
             return null;
         }
 
         final BufferedImage imageCopy = copyImage(image);
+        final Rectangle bounds = differences.getBounds();
 
         final Color highlighterColor = new Color(228, 252, 90, 50);
         final Color pixelEmphasizeColor = new Color(228, 0, 0);
@@ -734,25 +1209,29 @@ public class ImageHelper
         final Graphics2D g = imageCopy.createGraphics();
         g.setColor(highlighterColor);
 
-        for (final Point pixel : pixels)
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++)
         {
-            // the middle of the block should be our pixel to make it marker like
-            int x = pixel.x - (markingSizeX / 2);
-            int y = pixel.y - (markingSizeY / 2);
-
-            // avoid negative values
-            x = x < 0 ? 0 : x;
-            y = y < 0 ? 0 : y;
+            for (int x = differences.nextSetInRow(y, bounds.x); x >= 0; x = differences.nextSetInRow(y, x + 1))
+            {
+                // the middle of the block should be our pixel to make it marker like,
+                // avoid negative values
+                final int markerX = Math.max(0, x - (markingSizeX / 2));
+                final int markerY = Math.max(0, y - (markingSizeY / 2));
 
-            g.fillRect(x, y, markingSizeX, markingSizeY);
+                g.fillRect(markerX, markerY, markingSizeX, markingSizeY);
+            }
         }
 
         g.dispose();
 
         // mark the pixels on the new background
-        for (final Point pixel : pixels)
+        final int emphasizeRGB = pixelEmphasizeColor.getRGB();
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++)
         {
-            imageCopy.setRGB(pixel.x, pixel.y, pixelEmphasizeColor.getRGB());
+            for (int x = differences.nextSetInRow(y, bounds.x); x >= 0; x = differences.nextSetInRow(y, x + 1))
+            {
+                imageCopy.setRGB(x, y, emphasizeRGB);
+            }
         }
 
         return imageCopy;
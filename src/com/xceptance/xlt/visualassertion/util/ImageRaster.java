@@ -0,0 +1,215 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Direct access to the pixels of an image in the TYPE_INT_ARGB layout. All pixels are held row by row in one int
+ * array, so the comparison kernels can walk them sequentially instead of calling getRGB for every single pixel.
+ * <p>
+ * The pixel values are the same ones getRGB would return for the original image.
+ */
+public class ImageRaster
+{
+    private final BufferedImage image;
+
+    private final int[] pixels;
+
+    private final int width;
+
+    private final int height;
+
+    private ImageRaster(final BufferedImage image)
+    {
+        this.image = image;
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+    }
+
+    /**
+     * Returns a raster for the given image. The image itself is used if it already is a plain TYPE_INT_ARGB image,
+     * otherwise it is converted once. The raster must be treated as read only, because it might share its pixels with
+     * the given image.
+     *
+     * @param image
+     *            the image to access
+     * @return the raster of the image
+     */
+    public static ImageRaster of(final BufferedImage image)
+    {
+        return of(image, true);
+    }
+
+    /**
+     * Returns a raster for the given image like {@link #of(BufferedImage)}. Images that are kept beyond one assertion,
+     * like cached references, must not take a buffer from the {@link RasterPool}, because they are never released.
+     *
+     * @param image
+     *            the image to access
+     * @param pooled
+     *            whether a converted copy may take its buffer from the pool
+     * @return the raster of the image
+     */
+    public static ImageRaster of(final BufferedImage image, final boolean pooled)
+    {
+        if (isDirect(image))
+        {
+            return new ImageRaster(image);
+        }
+
+        return copyOf(image, pooled);
+    }
+
+    /**
+     * Returns a raster with a fresh TYPE_INT_ARGB copy of the given image, which can be modified freely. The copy
+     * takes its buffer from the {@link RasterPool} and can be released to it once it is not used anymore.
+     *
+     * @param image
+     *            the image to copy
+     * @return the raster of the copy
+     */
+    public static ImageRaster copyOf(final BufferedImage image)
+    {
+        return copyOf(image, true);
+    }
+
+    /**
+     * Returns a raster with a fresh TYPE_INT_ARGB copy of the given image like {@link #copyOf(BufferedImage)}
+     *
+     * @param image
+     *            the image to copy
+     * @param pooled
+     *            whether the copy takes its buffer from the {@link RasterPool}, only for copies that are released
+     * @return the raster of the copy
+     */
+    public static ImageRaster copyOf(final BufferedImage image, final boolean pooled)
+    {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
+        // all pixels are overwritten, so a pooled buffer can be used
+        final BufferedImage copy = pooled ? RasterPool.createImage(width, height)
+                                          : new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        final int[] data = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+
+        if (isDirect(image))
+        {
+            System.arraycopy(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0, data, 0, data.length);
+        }
+        else
+        {
+            // one bulk conversion instead of width * height single calls
+            image.getRGB(0, 0, width, height, data, 0, width);
+        }
+
+        return new ImageRaster(copy);
+    }
+
+    /**
+     * Returns a raster with a fresh TYPE_INT_ARGB copy of a region of the given image. Only the pixels of the region
+     * are converted.
+     *
+     * @param image
+     *            the image to copy from
+     * @param region
+     *            the region to copy, it must lie within the image
+     * @return the raster of the copy
+     */
+    public static ImageRaster copyOf(final BufferedImage image, final Rectangle region)
+    {
+        final BufferedImage copy = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+        final int[] data = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+
+        if (isDirect(image))
+        {
+            final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < region.height; y++)
+            {
+                System.arraycopy(pixels, (region.y + y) * image.getWidth() + region.x, data, y * region.width, region.width);
+            }
+        }
+        else
+        {
+            image.getRGB(region.x, region.y, region.width, region.height, data, 0, region.width);
+        }
+
+        return new ImageRaster(copy);
+    }
+
+    /**
+     * Checks whether the pixels of the image can be accessed directly, which is only the case for TYPE_INT_ARGB images
+     * that own their whole data buffer without any offset or padding.
+     *
+     * @param image
+     *            the image to check
+     * @return true if the data buffer of the image can be used as is
+     */
+    private static boolean isDirect(final BufferedImage image)
+    {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB)
+        {
+            return false;
+        }
+
+        final WritableRaster raster = image.getRaster();
+        final SampleModel sampleModel = raster.getSampleModel();
+
+        return raster.getParent() == null && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+               && raster.getDataBuffer().getOffset() == 0 && sampleModel instanceof SinglePixelPackedSampleModel
+               && ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride() == image.getWidth();
+    }
+
+    /**
+     * Returns the image that backs this raster
+     * @return TYPE_INT_ARGB image sharing its pixels with this raster
+     */
+    public BufferedImage getImage()
+    {
+        return image;
+    }
+
+    /**
+     * Returns the pixels row by row, the pixel (x, y) is found at index y * width + x
+     * @return the backing pixel array
+     */
+    public int[] getPixels()
+    {
+        return pixels;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Returns the ARGB value of a single pixel
+     * @param x x coordinate of the pixel
+     * @param y y coordinate of the pixel
+     * @return the ARGB value as getRGB would return it
+     */
+    public int getRGB(final int x, final int y)
+    {
+        return pixels[y * width + x];
+    }
+
+    /**
+     * Checks whether both rasters have the same dimensions
+     * @param other the raster to check against
+     * @return true if width and height match
+     */
+    public boolean hasSameSize(final ImageRaster other)
+    {
+        return width == other.width && height == other.height;
+    }
+}
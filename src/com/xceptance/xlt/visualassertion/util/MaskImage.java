@@ -1,6 +1,6 @@
 package com.xceptance.xlt.visualassertion.util;
 
-import java.awt.*;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 
 import com.sun.istack.internal.Nullable;
@@ -14,31 +14,40 @@ import com.xceptance.xlt.visualassertion.algorithm.ComparisonAlgorithm;
 public class MaskImage
 {
     private final BufferedImage reference;
-    private BufferedImage mask;
+    private BitMask mask;
 
     /**
      * Initializes a mask with the reference image, that is used to train it and the mask image itself.
      * @param referenceImage The reference image for the mask training
-     * @param maskImage The mask image, @Nullable -> Creates a blank mask image with the dimensions of the reference image
+     * @param maskImage The mask image, @Nullable -> Creates a blank mask with the dimensions of the reference image
      */
     public MaskImage(final BufferedImage referenceImage, @Nullable final BufferedImage maskImage)
     {
-        this.reference = ImageHelper.copyImage(referenceImage);
+        this.reference = ImageRaster.copyOf(referenceImage, false).getImage();
 
         if (maskImage == null)
         {
             // create a new mask with same dimensions as reference image
-            this.mask = new BufferedImage(referenceImage.getWidth(),referenceImage.getHeight(), BufferedImage.TYPE_INT_ARGB);
-
-            // fill the mask with transparent white
-            this.mask = ImageHelper.createPlainImage(this.mask, ImageHelper.WHITE_TRANSPARENT);
+            this.mask = new BitMask(referenceImage.getWidth(), referenceImage.getHeight());
         }
         else
         {
-            this.mask = ImageHelper.copyImage(maskImage);
+            // black pixels of the image are masked
+            this.mask = BitMask.fromImage(maskImage, ImageHelper.BLACK.getRGB());
         }
     }
 
+    /**
+     * Initializes a mask with the reference image, that is used to train it and an already loaded mask.
+     * @param referenceImage The reference image for the mask training
+     * @param mask The mask, it is trained in place, so a shared mask has to be copied first
+     */
+    public MaskImage(final BufferedImage referenceImage, final BitMask mask)
+    {
+        this.reference = ImageRaster.copyOf(referenceImage, false).getImage();
+        this.mask = mask;
+    }
+
     /**
      * Initializes the mask with the given reference image, a blank mask image is created with the dimensions of
      * the reference image.
@@ -48,16 +57,25 @@ public class MaskImage
      */
     public MaskImage(final BufferedImage referenceImage)
     {
-        this(referenceImage, null);
+        this(referenceImage, (BufferedImage) null);
     }
 
     /**
-     * Returns the mask image
+     * Returns the mask image, masked areas are black and the rest is transparent white
      * @return mask image as BufferedImage
      */
     public BufferedImage getMask()
     {
-        return ImageHelper.copyImage(mask);
+        return mask.toImage(ImageHelper.BLACK.getRGB(), ImageHelper.WHITE_TRANSPARENT.getRGB());
+    }
+
+    /**
+     * Returns the mask itself without converting it to an image. It must not be modified.
+     * @return the current mask
+     */
+    public BitMask getBitMask()
+    {
+        return mask;
     }
 
     /**
@@ -69,65 +87,87 @@ public class MaskImage
      */
     public void train(final BufferedImage image, final ComparisonAlgorithm algorithm, final RectangleMask markerMask)
     {
-        Point[] differences = null;
+        maskDifferences(mask, findDifferences(reference, image, algorithm), markerMask);
+    }
 
+    /**
+     * Calculates all differences between the reference and the given image, nothing is masked
+     * @param reference The reference image
+     * @param image The image to compare the reference to
+     * @param algorithm The algorithm that calculates the differences between the two images
+     * @return the differences, null if the image sizes don't match
+     */
+    static DifferenceMap findDifferences(final BufferedImage reference, final BufferedImage image, final ComparisonAlgorithm algorithm)
+    {
         switch (algorithm.getType())
         {
         case PIXELFUZZY:
-            differences = ImageHelper.fuzzyCompare(reference, image, algorithm.getColorTolerance(),
-                                                    algorithm.getPixelTolerance(), algorithm.getFuzzyBlockSize());
-            break;
+            return ImageHelper.fuzzyCompare(reference, image, null, algorithm.getColorTolerance(),
+                                            algorithm.getPixelTolerance(), algorithm.getFuzzyBlockSize(),
+                                            algorithm.getFuzzyBlockStride(), false);
 
         case COLORFUZZY:
-            differences = ImageHelper.colorFuzzyCompare(reference, image, algorithm.getColorTolerance());
-            break;
+            return ImageHelper.colorFuzzyCompare(reference, image, null, algorithm.getColorTolerance(), false);
 
         case EXACTMATCH:
-            differences = ImageHelper.compareImages(reference, image);
-            break;
+            return ImageHelper.compareImages(reference, image, null, false);
+
+        case PYRAMID:
+            // the pyramid only speeds up the comparison, the differences are the ones of the wrapped algorithm
+            return findDifferences(reference, image, algorithm.getBaseAlgorithm());
         }
 
-        mask = maskDifferences(mask, differences, markerMask, ImageHelper.BLACK);
+        return null;
     }
 
     /**
      * Very close to markDifferences. Goes through every pixel that was different and masks the marking block it is in,
-     * unless it was marked already. Works directly on the mask image.
+     * unless it was marked already. Works directly on the mask.
+     * <p>
+     * A run of adjacent differences in one row is masked with a single rectangle, which covers exactly the area the
+     * single blocks would cover.
      * 
-     * @param pixels pixel positions of the pixels that where detected as different
-     * @return A BufferedImage in which the pixels at the given positions have been marked in BLACK
+     * @param mask the mask to add the marked blocks to
+     * @param differences the pixels that where detected as different
+     * @param markerMask the size of the block that is masked around a difference
      */
-    private BufferedImage maskDifferences(final BufferedImage image, final Point[] pixels,
-                                          final RectangleMask markerMask, final Color maskingColor)
+    static void maskDifferences(final BitMask mask, final DifferenceMap differences, final RectangleMask markerMask)
     {
-        final BufferedImage copy = ImageHelper.copyImage(image);
+        if (differences == null || differences.isEmpty())
+            return;
 
-        if (pixels == null)
-            return copy;
+        final Rectangle bounds = differences.getBounds();
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++)
+        {
+            final int maskY = Math.max(0, y - markerMask.getYDistance());
 
-        final Graphics2D g = copy.createGraphics();
-        g.setColor(maskingColor);
+            int x = differences.nextSetInRow(y, bounds.x);
+            while (x >= 0)
+            {
+                // find the end of this run of differences
+                int runEnd = x + 1;
+                while (runEnd < differences.getWidth() && differences.isSet(runEnd, y))
+                {
+                    runEnd++;
+                }
 
-        for (Point pixel : pixels)
-        {
-            int x = Math.max(0, pixel.x - markerMask.getXDistance());
-            int y = Math.max(0, pixel.y - markerMask.getYDistance());
+                final int maskStartX = Math.max(0, x - markerMask.getXDistance());
+                final int maskEndX = Math.max(0, runEnd - 1 - markerMask.getXDistance()) + markerMask.getWidth();
 
-            g.fillRect(x, y, markerMask.getWidth(), markerMask.getHeight());
-        }
-        g.dispose();
+                mask.fillRect(maskStartX, maskY, maskEndX - maskStartX, markerMask.getHeight());
 
-        return copy;
+                x = differences.nextSetInRow(y, runEnd);
+            }
+        }
     }
 
     /**
      * Closes the mask to better cover an area that is allowed to be different
-     * @param structureElementWidth Width of the structure element
-     * @param structureElementHeight Height of the structure element
+     * @param structureElementWidth Width of the structure element in blocks of 10 pixels
+     * @param structureElementHeight Height of the structure element in blocks of 10 pixels
      */
     public void closeMask(final int structureElementWidth, final int structureElementHeight)
     {
-        mask = ImageHelper.closeImage(mask, structureElementWidth, structureElementHeight, ImageHelper.BLACK.getRGB(),
-                ImageHelper.WHITE_TRANSPARENT.getRGB());
+        mask = ImageHelper.closeMaskInBlocks(mask, structureElementWidth, structureElementHeight);
     }
 }
@@ -0,0 +1,170 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * A 128 bit hash of the pixels of an image that are not masked. If the hash of a screenshot matches the one of the
+ * reference image, both have exactly the same pixels and the comparison can be skipped.
+ * <p>
+ * The hash of a reference image is stored next to it, together with the modification times of the reference image
+ * and the mask it was computed with. It is only used as long as both files are unchanged.
+ */
+public class PixelHash
+{
+    private static final long PRIME1 = 0x9E3779B97F4A7C15L;
+
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+
+    private static final long PRIME3 = 0x100000001B3L;
+
+    private static final String KEY_HASH = "hash";
+
+    private static final String KEY_REFERENCE_MODIFIED = "reference.lastModified";
+
+    private static final String KEY_REFERENCE_LENGTH = "reference.length";
+
+    private static final String KEY_MASK_MODIFIED = "mask.lastModified";
+
+    /**
+     * Hashes the pixels of an image that are not masked, in one pass in the order they are stored in
+     *
+     * @param image
+     *            the image to hash
+     * @param mask
+     *            the pixels to leave out, null if nothing is masked
+     * @return the hash as hex string
+     */
+    public static String compute(final BufferedImage image, final BitMask mask)
+    {
+        final ImageRaster raster = ImageRaster.of(image);
+        final int[] pixels = raster.getPixels();
+        final int width = raster.getWidth();
+        final int height = raster.getHeight();
+
+        final BitMask imageMask = mask == null ? null : mask.adaptSize(width, height);
+
+        // two independent lanes, the size is part of the hash
+        long h1 = PRIME1 ^ width;
+        long h2 = PRIME2 ^ height;
+
+        for (int y = 0; y < height; y++)
+        {
+            final int rowStart = y * width;
+
+            int spanStart = ImageHelper.nextUnmasked(imageMask, y, 0, width);
+            while (spanStart < width)
+            {
+                final int spanEnd = ImageHelper.nextMasked(imageMask, y, spanStart, width);
+                for (int i = rowStart + spanStart; i < rowStart + spanEnd; i++)
+                {
+                    final long value = pixels[i] & 0xFFFFFFFFL;
+                    h1 = Long.rotateLeft(h1 + value * PRIME2, 31) * PRIME1;
+                    h2 = (h2 ^ value) * PRIME3;
+                }
+
+                spanStart = ImageHelper.nextUnmasked(imageMask, y, spanEnd, width);
+            }
+        }
+
+        h1 += h2;
+        h2 += h1;
+        h1 = mix(h1);
+        h2 = mix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        return String.format("%016x%016x", h1, h2);
+    }
+
+    /**
+     * Reads the stored hash of a reference image
+     *
+     * @param hashFile
+     *            the file the hash is stored in
+     * @param referenceFile
+     *            the reference image
+     * @param maskFile
+     *            the mask the hash has to be computed with
+     * @return the hash or null if there is none or the reference image or the mask have changed since
+     */
+    public static String read(final File hashFile, final File referenceFile, final File maskFile)
+    {
+        if (!hashFile.isFile())
+        {
+            return null;
+        }
+
+        final Properties properties = new Properties();
+        try (final InputStream in = Files.newInputStream(hashFile.toPath()))
+        {
+            properties.load(in);
+        }
+        catch (final IOException e)
+        {
+            // treat it like a missing file, it is written again
+            return null;
+        }
+
+        if (!String.valueOf(referenceFile.lastModified()).equals(properties.getProperty(KEY_REFERENCE_MODIFIED))
+            || !String.valueOf(referenceFile.length()).equals(properties.getProperty(KEY_REFERENCE_LENGTH))
+            || !String.valueOf(maskFile.lastModified()).equals(properties.getProperty(KEY_MASK_MODIFIED)))
+        {
+            return null;
+        }
+
+        return properties.getProperty(KEY_HASH);
+    }
+
+    /**
+     * Creates the content of the file the hash of a reference image is stored in
+     *
+     * @param hash
+     *            the hash of the reference image
+     * @param referenceFile
+     *            the reference image
+     * @param maskFile
+     *            the mask the hash was computed with, it doesn't have to exist
+     * @return the file content
+     */
+    public static byte[] createHashFile(final String hash, final File referenceFile, final File maskFile)
+    {
+        final Properties properties = new Properties();
+        properties.setProperty(KEY_HASH, hash);
+        properties.setProperty(KEY_REFERENCE_MODIFIED, String.valueOf(referenceFile.lastModified()));
+        properties.setProperty(KEY_REFERENCE_LENGTH, String.valueOf(referenceFile.length()));
+        properties.setProperty(KEY_MASK_MODIFIED, String.valueOf(maskFile.lastModified()));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try
+        {
+            properties.store(out, "Pixel hash of the reference image");
+        }
+        catch (final IOException e)
+        {
+            // cannot happen with a byte array
+            throw new RuntimeException(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Final mixing step, so every input bit affects every output bit
+     */
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+}
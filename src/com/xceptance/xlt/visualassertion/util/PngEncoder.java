@@ -0,0 +1,482 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes images as PNG with a selectable compression level and row filter. Images with at most 256 colors, such as
+ * masks and difference images, are written with a palette and the smallest bit depth that fits (1, 2, 4 or 8 bits
+ * per pixel), all other images as RGB, or RGBA if they have transparent pixels.
+ */
+public class PngEncoder
+{
+    /**
+     * The filter that is applied to every row before it is compressed. ADAPTIVE tries all of them per row and takes
+     * the one with the smallest sum of absolute values, palette images are not filtered in this case.
+     */
+    public enum Filter
+    {
+        NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+    }
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    private static final int COLOR_TYPE_RGB = 2;
+
+    private static final int COLOR_TYPE_PALETTE = 3;
+
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    private final int compressionLevel;
+
+    private final Filter filter;
+
+    /**
+     * Creates an encoder
+     * @param compressionLevel The deflate level from 0 (no compression) to 9 (smallest files)
+     * @param filter The row filter
+     */
+    public PngEncoder(final int compressionLevel, final Filter filter)
+    {
+        this.compressionLevel = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+        this.filter = filter;
+    }
+
+    /**
+     * Creates an encoder with predefined settings
+     * @param preset "speed" for fast writing during load tests, "size" for small files or "default" for a balance of
+     *            both
+     * @return the encoder for the preset
+     */
+    public static PngEncoder forPreset(final String preset)
+    {
+        switch (preset.trim().toLowerCase())
+        {
+            case "speed":
+                return new PngEncoder(Deflater.BEST_SPEED, Filter.SUB);
+            case "size":
+                return new PngEncoder(Deflater.BEST_COMPRESSION, Filter.ADAPTIVE);
+            case "default":
+                return new PngEncoder(6, Filter.ADAPTIVE);
+            default:
+                throw new IllegalArgumentException("Unknown PNG preset: " + preset);
+        }
+    }
+
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    public Filter getFilter()
+    {
+        return filter;
+    }
+
+    /**
+     * Encodes an image as PNG
+     * @param image The image to encode
+     * @return the PNG data
+     * @throws IOException if the encoding fails
+     */
+    public byte[] encode(final BufferedImage image) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(image, out);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes an image as PNG to a stream
+     * @param image The image to encode
+     * @param stream The target stream, it is not closed
+     * @throws IOException if the stream cannot be written
+     */
+    public void write(final BufferedImage image, final OutputStream stream) throws IOException
+    {
+        final ImageRaster raster = ImageRaster.of(image);
+        final int[] pixels = raster.getPixels();
+        final int width = raster.getWidth();
+        final int height = raster.getHeight();
+
+        final int[] palette = createPalette(pixels);
+
+        final int colorType;
+        final int bitDepth;
+        if (palette != null)
+        {
+            colorType = COLOR_TYPE_PALETTE;
+            bitDepth = palette.length <= 2 ? 1 : palette.length <= 4 ? 2 : palette.length <= 16 ? 4 : 8;
+        }
+        else
+        {
+            colorType = hasTransparency(pixels) ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB;
+            bitDepth = 8;
+        }
+
+        final DataOutputStream out = new DataOutputStream(stream);
+        out.write(SIGNATURE);
+
+        // IHDR
+        final ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        final DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(bitDepth);
+        headerData.writeByte(colorType);
+        headerData.writeByte(0); // deflate
+        headerData.writeByte(0); // adaptive filtering
+        headerData.writeByte(0); // no interlace
+        writeChunk(out, "IHDR", header.toByteArray());
+
+        if (palette != null)
+        {
+            writePalette(out, palette);
+        }
+
+        writeChunk(out, "IDAT", compressRows(pixels, width, height, colorType, bitDepth, palette));
+        writeChunk(out, "IEND", new byte[0]);
+        out.flush();
+    }
+
+    /**
+     * Collects the distinct colors of the image, transparent ones first, so the transparency chunk stays short
+     *
+     * @return the colors or null if there are more than 256
+     */
+    private static int[] createPalette(final int[] pixels)
+    {
+        final ColorTable table = new ColorTable();
+        int lastColor = 0;
+        for (int i = 0; i < pixels.length; i++)
+        {
+            final int color = pixels[i];
+            if ((i == 0 || color != lastColor) && table.add(color) < 0)
+            {
+                return null;
+            }
+            lastColor = color;
+        }
+
+        final int[] colors = table.getColors();
+        final int[] palette = new int[colors.length];
+        int index = 0;
+        for (final int color : colors)
+        {
+            if (color >>> 24 != 0xFF)
+            {
+                palette[index++] = color;
+            }
+        }
+        for (final int color : colors)
+        {
+            if (color >>> 24 == 0xFF)
+            {
+                palette[index++] = color;
+            }
+        }
+
+        return palette;
+    }
+
+    private static boolean hasTransparency(final int[] pixels)
+    {
+        for (final int pixel : pixels)
+        {
+            if (pixel >>> 24 != 0xFF)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void writePalette(final DataOutputStream out, final int[] palette) throws IOException
+    {
+        final byte[] colors = new byte[palette.length * 3];
+        int transparentCount = 0;
+        for (int i = 0; i < palette.length; i++)
+        {
+            colors[i * 3] = (byte) (palette[i] >> 16);
+            colors[i * 3 + 1] = (byte) (palette[i] >> 8);
+            colors[i * 3 + 2] = (byte) palette[i];
+
+            if (palette[i] >>> 24 != 0xFF)
+            {
+                transparentCount = i + 1;
+            }
+        }
+        writeChunk(out, "PLTE", colors);
+
+        if (transparentCount > 0)
+        {
+            final byte[] alphas = new byte[transparentCount];
+            for (int i = 0; i < transparentCount; i++)
+            {
+                alphas[i] = (byte) (palette[i] >>> 24);
+            }
+            writeChunk(out, "tRNS", alphas);
+        }
+    }
+
+    /**
+     * Converts the rows into the raw PNG layout, filters and compresses them
+     */
+    private byte[] compressRows(final int[] pixels, final int width, final int height, final int colorType, final int bitDepth,
+                                final int[] palette) throws IOException
+    {
+        final ColorTable indices = palette == null ? null : new ColorTable(palette);
+        final int bytesPerPixel = colorType == COLOR_TYPE_RGBA ? 4 : colorType == COLOR_TYPE_RGB ? 3 : 1;
+        final int rowLength = colorType == COLOR_TYPE_PALETTE ? (width * bitDepth + 7) / 8 : width * bytesPerPixel;
+
+        byte[] previous = new byte[rowLength];
+        byte[] current = new byte[rowLength];
+        final byte[] filtered = new byte[rowLength + 1];
+        final byte[] candidate = new byte[rowLength + 1];
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final Deflater deflater = new Deflater(compressionLevel);
+        try
+        {
+            final DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater, 1 << 16);
+
+            for (int y = 0; y < height; y++)
+            {
+                final int rowStart = y * width;
+                if (indices != null)
+                {
+                    packIndices(pixels, rowStart, width, bitDepth, indices, current);
+                }
+                else
+                {
+                    for (int x = 0, i = 0; x < width; x++)
+                    {
+                        final int pixel = pixels[rowStart + x];
+                        current[i++] = (byte) (pixel >> 16);
+                        current[i++] = (byte) (pixel >> 8);
+                        current[i++] = (byte) pixel;
+                        if (bytesPerPixel == 4)
+                        {
+                            current[i++] = (byte) (pixel >>> 24);
+                        }
+                    }
+                }
+
+                if (filter == Filter.ADAPTIVE && palette == null)
+                {
+                    long bestSum = Long.MAX_VALUE;
+                    for (int type = 0; type <= 4; type++)
+                    {
+                        final long sum = applyFilter(type, current, previous, bytesPerPixel, candidate);
+                        if (sum < bestSum)
+                        {
+                            bestSum = sum;
+                            System.arraycopy(candidate, 0, filtered, 0, filtered.length);
+                        }
+                    }
+                }
+                else
+                {
+                    applyFilter(filter == Filter.ADAPTIVE ? 0 : filter.ordinal(), current, previous, bytesPerPixel, filtered);
+                }
+                out.write(filtered);
+
+                final byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+
+            out.finish();
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        return compressed.toByteArray();
+    }
+
+    private static void packIndices(final int[] pixels, final int rowStart, final int width, final int bitDepth, final ColorTable indices,
+                                    final byte[] row)
+    {
+        if (bitDepth == 8)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                row[x] = (byte) indices.indexOf(pixels[rowStart + x]);
+            }
+            return;
+        }
+
+        // the pixels are packed from the most significant bit on
+        final int pixelsPerByte = 8 / bitDepth;
+        for (int i = 0, x = 0; i < row.length; i++)
+        {
+            int packed = 0;
+            for (int p = 0; p < pixelsPerByte; p++, x++)
+            {
+                packed <<= bitDepth;
+                if (x < width)
+                {
+                    packed |= indices.indexOf(pixels[rowStart + x]);
+                }
+            }
+            row[i] = (byte) packed;
+        }
+    }
+
+    /**
+     * Filters a row, the filter type is written in front of it
+     *
+     * @return the sum of the absolute values of the filtered bytes, to compare filters
+     */
+    private static long applyFilter(final int type, final byte[] current, final byte[] previous, final int bytesPerPixel,
+                                    final byte[] target)
+    {
+        target[0] = (byte) type;
+        long sum = 0;
+        for (int i = 0; i < current.length; i++)
+        {
+            final int x = current[i] & 0xFF;
+            final int a = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xFF : 0;
+            final int b = previous[i] & 0xFF;
+            final int c = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+
+            final int value;
+            switch (type)
+            {
+                case 1:
+                    value = x - a;
+                    break;
+                case 2:
+                    value = x - b;
+                    break;
+                case 3:
+                    value = x - ((a + b) >>> 1);
+                    break;
+                case 4:
+                    value = x - paethPredictor(a, b, c);
+                    break;
+                default:
+                    value = x;
+                    break;
+            }
+
+            final byte filtered = (byte) value;
+            target[i + 1] = filtered;
+            sum += Math.abs(filtered);
+        }
+
+        return sum;
+    }
+
+    private static int paethPredictor(final int a, final int b, final int c)
+    {
+        final int p = a + b - c;
+        final int pa = Math.abs(p - a);
+        final int pb = Math.abs(p - b);
+        final int pc = Math.abs(p - c);
+
+        if (pa <= pb && pa <= pc)
+        {
+            return a;
+        }
+
+        return pb <= pc ? b : c;
+    }
+
+    private static void writeChunk(final DataOutputStream out, final String type, final byte[] data) throws IOException
+    {
+        final byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+
+        final CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Open addressing hash table of up to 256 colors and their palette index
+     */
+    private static class ColorTable
+    {
+        private static final int SIZE = 512;
+
+        private final int[] keys = new int[SIZE];
+
+        private final int[] values = new int[SIZE];
+
+        private final boolean[] used = new boolean[SIZE];
+
+        private final int[] colors = new int[256];
+
+        private int count = 0;
+
+        ColorTable()
+        {
+        }
+
+        ColorTable(final int[] palette)
+        {
+            for (final int color : palette)
+            {
+                add(color);
+            }
+        }
+
+        /**
+         * Adds a color unless it is known already
+         * @return the index of the color or -1 if the table is full
+         */
+        int add(final int color)
+        {
+            int slot = (color * 0x9E3779B9) >>> 23;
+            while (used[slot])
+            {
+                if (keys[slot] == color)
+                {
+                    return values[slot];
+                }
+                slot = (slot + 1) & (SIZE - 1);
+            }
+
+            if (count == colors.length)
+            {
+                return -1;
+            }
+
+            used[slot] = true;
+            keys[slot] = color;
+            values[slot] = count;
+            colors[count] = color;
+
+            return count++;
+        }
+
+        int indexOf(final int color)
+        {
+            return add(color);
+        }
+
+        int[] getColors()
+        {
+            final int[] result = new int[count];
+            System.arraycopy(colors, 0, result, 0, count);
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Reuses the pixel buffers of the temporary TYPE_INT_ARGB images the comparison creates: converted screenshots, images
+ * padded to the same size, marked and difference images. Screenshots of the same page have the same size, so after a
+ * few assertions most of these images get a buffer of an earlier one instead of a new one.
+ * <p>
+ * The buffers are kept by their length and limited by the number of bytes they take. If the limit is reached, the
+ * buffers of the length that was not used for the longest time are dropped. The pool is shared by all threads of the
+ * process, because images are often released by another thread than the one that created them, for example after
+ * they were written in the background.
+ * <p>
+ * Only images created by the pool are taken back. An image must only be released once nobody uses it anymore, its
+ * pixels are overwritten by the next image of the same size.
+ */
+public class RasterPool
+{
+    private static final Map<Integer, ArrayDeque<int[]>> buffers = new LinkedHashMap<>(16, 0.75f, true);
+
+    // the buffers of images created by the pool, arrays are compared by identity
+    private static final Map<int[], Boolean> lentBuffers = new WeakHashMap<>();
+
+    private static long maxBytes = 0;
+
+    private static long pooledBytes = 0;
+
+    private static long hitCount = 0;
+
+    private static long missCount = 0;
+
+    /**
+     * Sets the number of bytes the pooled buffers may take. Buffers are dropped right away if the new limit is lower.
+     *
+     * @param bytes
+     *            the limit in bytes, 0 or less disables the pool
+     */
+    public static synchronized void setMaxBytes(final long bytes)
+    {
+        maxBytes = Math.max(0, bytes);
+        evict();
+    }
+
+    /**
+     * Creates a TYPE_INT_ARGB image, with a pooled buffer if there is one of its size. The pixels of the image are
+     * undefined, the caller has to set all of them.
+     *
+     * @param width
+     *            the width of the image
+     * @param height
+     *            the height of the image
+     * @return the image
+     */
+    public static BufferedImage createImage(final int width, final int height)
+    {
+        final int length = width * height;
+
+        int[] data = null;
+        synchronized (RasterPool.class)
+        {
+            final ArrayDeque<int[]> pooled = buffers.get(length);
+            if (pooled != null)
+            {
+                data = pooled.poll();
+                if (pooled.isEmpty())
+                {
+                    buffers.remove(length);
+                }
+            }
+
+            if (data != null)
+            {
+                hitCount++;
+                pooledBytes -= (long) length * 4;
+            }
+            else
+            {
+                missCount++;
+                if (maxBytes > 0)
+                {
+                    data = new int[length];
+                }
+            }
+
+            if (data != null)
+            {
+                lentBuffers.put(data, Boolean.TRUE);
+            }
+        }
+
+        if (data == null)
+        {
+            // the pool is disabled, so nothing has to be remembered
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        final DirectColorModel colorModel = (DirectColorModel) ColorModel.getRGBdefault();
+        final WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(data, length), width, height, width,
+                                                                colorModel.getMasks(), null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Gives the buffer of an image back to the pool. Images that were not created by the pool are ignored.
+     *
+     * @param image
+     *            the image that is not used anymore, may be null
+     */
+    public static void release(final BufferedImage image)
+    {
+        if (image == null)
+        {
+            return;
+        }
+
+        final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        if (!(dataBuffer instanceof DataBufferInt))
+        {
+            return;
+        }
+        final int[] data = ((DataBufferInt) dataBuffer).getData();
+
+        synchronized (RasterPool.class)
+        {
+            if (lentBuffers.remove(data) == null)
+            {
+                return;
+            }
+
+            final long bytes = (long) data.length * 4;
+            if (bytes > maxBytes)
+            {
+                return;
+            }
+
+            ArrayDeque<int[]> pooled = buffers.get(data.length);
+            if (pooled == null)
+            {
+                pooled = new ArrayDeque<>();
+                buffers.put(data.length, pooled);
+            }
+            pooled.push(data);
+            pooledBytes += bytes;
+
+            evict();
+        }
+    }
+
+    /**
+     * Drops all pooled buffers
+     */
+    public static synchronized void clear()
+    {
+        buffers.clear();
+        pooledBytes = 0;
+    }
+
+    /**
+     * Returns how often a pooled buffer could be used
+     * @return number of hits
+     */
+    public static synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Returns how often a new buffer had to be allocated
+     * @return number of misses
+     */
+    public static synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of bytes taken by the pooled buffers
+     * @return the pooled bytes
+     */
+    public static synchronized long getPooledBytes()
+    {
+        return pooledBytes;
+    }
+
+    /**
+     * Drops the buffers of the least recently used lengths until the limit is kept
+     */
+    private static void evict()
+    {
+        final Iterator<Map.Entry<Integer, ArrayDeque<int[]>>> iterator = buffers.entrySet().iterator();
+        while (pooledBytes > maxBytes && iterator.hasNext())
+        {
+            final Map.Entry<Integer, ArrayDeque<int[]>> entry = iterator.next();
+            pooledBytes -= (long) entry.getKey() * 4 * entry.getValue().size();
+            iterator.remove();
+        }
+    }
+}
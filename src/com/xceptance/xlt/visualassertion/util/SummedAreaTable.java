@@ -0,0 +1,85 @@
+package com.xceptance.xlt.visualassertion.util;
+
+/**
+ * Integral image of a difference map, which returns the number of differences in a rectangle with four lookups. The
+ * sums are only kept at the given sample columns and rows, so the rectangles have to start and end on those, but the
+ * table stays small even for very large images.
+ */
+public class SummedAreaTable
+{
+    private final int[] columnIndex;
+
+    private final int[] rowIndex;
+
+    private final int columns;
+
+    private final int[] sums;
+
+    /**
+     * Builds the table in one pass over the rows of the difference map
+     * @param differences The differences to count
+     * @param sampleColumns Ascending x coordinates the rectangles can start or end at, from 0 to the width
+     * @param sampleRows Ascending y coordinates the rectangles can start or end at, from 0 to the height
+     */
+    public SummedAreaTable(final DifferenceMap differences, final int[] sampleColumns, final int[] sampleRows)
+    {
+        this.columns = sampleColumns.length;
+        this.sums = new int[sampleColumns.length * sampleRows.length];
+
+        this.columnIndex = new int[differences.getWidth() + 1];
+        for (int i = 0; i < sampleColumns.length; i++)
+        {
+            columnIndex[sampleColumns[i]] = i;
+        }
+        this.rowIndex = new int[differences.getHeight() + 1];
+        for (int i = 0; i < sampleRows.length; i++)
+        {
+            rowIndex[sampleRows[i]] = i;
+        }
+
+        // the sum of all rows above the current one, up to each sample column
+        final int[] columnSums = new int[columns];
+        int nextRow = 0;
+
+        for (int y = 0; y <= differences.getHeight(); y++)
+        {
+            // store the sums of all rows above y
+            if (nextRow < sampleRows.length && sampleRows[nextRow] == y)
+            {
+                System.arraycopy(columnSums, 0, sums, nextRow * columns, columns);
+                nextRow++;
+            }
+
+            if (y == differences.getHeight() || nextRow == sampleRows.length)
+            {
+                break;
+            }
+
+            // add the current row, the intervals between the sample columns cover it exactly once
+            int rowSum = 0;
+            for (int i = 1; i < columns; i++)
+            {
+                rowSum += differences.countInRow(y, sampleColumns[i - 1], sampleColumns[i]);
+                columnSums[i] += rowSum;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of differences in the given rectangle, whose borders must be sample columns and rows
+     * @param x0 First column of the rectangle
+     * @param y0 First row of the rectangle
+     * @param x1 Column after the last one of the rectangle
+     * @param y1 Row after the last one of the rectangle
+     * @return the number of differences inside the rectangle
+     */
+    public int count(final int x0, final int y0, final int x1, final int y1)
+    {
+        final int left = columnIndex[x0];
+        final int right = columnIndex[x1];
+        final int top = rowIndex[y0] * columns;
+        final int bottom = rowIndex[y1] * columns;
+
+        return sums[bottom + right] - sums[bottom + left] - sums[top + right] + sums[top + left];
+    }
+}
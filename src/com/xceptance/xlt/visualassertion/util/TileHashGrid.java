@@ -0,0 +1,233 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Hashes of the unmasked pixels of an image in tiles of {@link #TILE_SIZE} x {@link #TILE_SIZE} pixels. Tiles with the
+ * same hash in the reference image and the screenshot hold the same pixels, so they can be masked before the
+ * comparison and only the changed tiles are compared pixel by pixel. Tiles without any unmasked pixel are not hashed.
+ * <p>
+ * The grid of a reference image is stored next to it, together with the modification times of the reference image and
+ * the mask it was computed with. It is only used as long as both files are unchanged.
+ */
+public class TileHashGrid
+{
+    public static final int TILE_SIZE = 32;
+
+    private static final int FILE_MAGIC = 0x58565447;
+
+    private static final int FILE_VERSION = 1;
+
+    private static final long PRIME1 = 0x9E3779B97F4A7C15L;
+
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+
+    private final int width;
+
+    private final int height;
+
+    private final int tilesX;
+
+    private final int tilesY;
+
+    private final long[] hashes;
+
+    private TileHashGrid(final int width, final int height, final long[] hashes)
+    {
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Hashes the tiles of an image in one pass over its unmasked pixels
+     *
+     * @param image
+     *            the image to hash
+     * @param mask
+     *            the pixels to leave out, null if nothing is masked
+     * @return the hashes of all tiles
+     */
+    public static TileHashGrid compute(final BufferedImage image, final BitMask mask)
+    {
+        final ImageRaster raster = ImageRaster.of(image);
+        final int[] pixels = raster.getPixels();
+        final int width = raster.getWidth();
+        final int height = raster.getHeight();
+
+        final BitMask imageMask = mask == null ? null : mask.adaptSize(width, height);
+
+        final int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        final long[] hashes = new long[tilesX * ((height + TILE_SIZE - 1) / TILE_SIZE)];
+
+        for (int y = 0; y < height; y++)
+        {
+            final int rowStart = y * width;
+            final int tileRow = (y / TILE_SIZE) * tilesX;
+
+            int spanStart = ImageHelper.nextUnmasked(imageMask, y, 0, width);
+            while (spanStart < width)
+            {
+                final int spanEnd = ImageHelper.nextMasked(imageMask, y, spanStart, width);
+
+                // hash the span piece by piece, each piece lies in one tile
+                int x = spanStart;
+                while (x < spanEnd)
+                {
+                    final int pieceEnd = Math.min(spanEnd, (x / TILE_SIZE + 1) * TILE_SIZE);
+                    final int tile = tileRow + x / TILE_SIZE;
+
+                    // the position is part of the hash, so a differently masked row doesn't give the same hash
+                    long h = hashes[tile] + (((long) y << 32) | x) * PRIME1;
+                    for (int i = rowStart + x; i < rowStart + pieceEnd; i++)
+                    {
+                        h = Long.rotateLeft(h + (pixels[i] & 0xFFFFFFFFL) * PRIME2, 31) * PRIME1;
+                    }
+                    hashes[tile] = h;
+
+                    x = pieceEnd;
+                }
+
+                spanStart = ImageHelper.nextUnmasked(imageMask, y, spanEnd, width);
+            }
+        }
+
+        return new TileHashGrid(width, height, hashes);
+    }
+
+    /**
+     * Reads the stored grid of a reference image
+     *
+     * @param gridFile
+     *            the file the grid is stored in
+     * @param referenceFile
+     *            the reference image
+     * @param maskFile
+     *            the mask the grid has to be computed with
+     * @return the grid or null if there is none or the reference image or the mask have changed since
+     */
+    public static TileHashGrid read(final File gridFile, final File referenceFile, final File maskFile)
+    {
+        if (!gridFile.isFile())
+        {
+            return null;
+        }
+
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(gridFile.toPath()))))
+        {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION || in.readInt() != TILE_SIZE
+                || in.readLong() != referenceFile.lastModified() || in.readLong() != referenceFile.length()
+                || in.readLong() != maskFile.lastModified())
+            {
+                return null;
+            }
+
+            final int width = in.readInt();
+            final int height = in.readInt();
+            final long[] hashes = new long[((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE)];
+            for (int i = 0; i < hashes.length; i++)
+            {
+                hashes[i] = in.readLong();
+            }
+
+            return new TileHashGrid(width, height, hashes);
+        }
+        catch (final IOException e)
+        {
+            // treat it like a missing file, it is written again
+            return null;
+        }
+    }
+
+    /**
+     * Creates the content of the file the grid of a reference image is stored in
+     *
+     * @param referenceFile
+     *            the reference image
+     * @param maskFile
+     *            the mask the grid was computed with, it doesn't have to exist
+     * @return the file content
+     */
+    public byte[] createGridFile(final File referenceFile, final File maskFile)
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(48 + hashes.length * 8);
+        try (final DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(TILE_SIZE);
+            out.writeLong(referenceFile.lastModified());
+            out.writeLong(referenceFile.length());
+            out.writeLong(maskFile.lastModified());
+            out.writeInt(width);
+            out.writeInt(height);
+            for (final long hash : hashes)
+            {
+                out.writeLong(hash);
+            }
+        }
+        catch (final IOException e)
+        {
+            // cannot happen with a byte array
+            throw new RuntimeException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Adds all tiles with the same hash in both grids to a copy of the mask. Both grids must be computed with this
+     * mask. If the images have different sizes, nothing is added.
+     *
+     * @param mask
+     *            the mask both grids were computed with, null if nothing is masked. It is not modified.
+     * @param other
+     *            the grid of the other image
+     * @return the extended mask, or the given one if no tile was added
+     */
+    public BitMask maskEqualTiles(final BitMask mask, final TileHashGrid other)
+    {
+        if (width != other.width || height != other.height)
+        {
+            return mask;
+        }
+
+        BitMask extended = mask;
+        for (int tileY = 0; tileY < tilesY; tileY++)
+        {
+            for (int tileX = 0; tileX < tilesX; tileX++)
+            {
+                final int tile = tileY * tilesX + tileX;
+                if (hashes[tile] == other.hashes[tile])
+                {
+                    if (extended == mask)
+                    {
+                        extended = mask == null ? new BitMask(width, height) : mask.adaptSize(width, height).copy();
+                    }
+                    extended.fillRect(tileX * TILE_SIZE, tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+                }
+            }
+        }
+
+        return extended;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+}
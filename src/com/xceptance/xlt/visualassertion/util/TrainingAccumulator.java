@@ -0,0 +1,360 @@
+package com.xceptance.xlt.visualassertion.util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.xceptance.xlt.api.util.XltLogger;
+import com.xceptance.xlt.visualassertion.algorithm.ComparisonAlgorithm;
+
+/**
+ * Collects the differences of many training runs in memory, instead of writing the mask after every run. The image is
+ * divided into cells of the marker size, and each cell counts in how many runs it held a difference. When the
+ * collected runs are flushed, the differences in every cell that differed in more than the given share of all runs
+ * are masked the same way {@link MaskImage#train} masks them, so a difference that shows up only once in a while
+ * doesn't mask its area for good. The share is only judged once enough runs are collected that a single difference
+ * stays below it, until then a flush writes nothing.
+ * <p>
+ * There is one accumulator per mask file, shared by all threads of the process. Runs are added without locking: the
+ * counts are atomic, and a bitset of all pixels that ever differed is updated with compare-and-set, so no run of
+ * another thread is lost. The collected runs are flushed when enough of them are pending and when the JVM shuts down.
+ */
+public class TrainingAccumulator
+{
+    // guards the accumulators, no files are read or written while it is held
+    private static final ReentrantLock accumulatorsLock = new ReentrantLock();
+
+    private static final Map<File, TrainingAccumulator> accumulators = new HashMap<>();
+
+    private static boolean shutdownHookAdded = false;
+
+    private final File maskFile;
+
+    private final int width;
+
+    private final int height;
+
+    private final RectangleMask markerMask;
+
+    private final double threshold;
+
+    private final int closeWidth;
+
+    private final int closeHeight;
+
+    // runs needed before the threshold is judged
+    private final int minIterations;
+
+    private final int cellsX;
+
+    private final int wordsPerRow;
+
+    // number of runs in which each cell held a difference
+    private final AtomicIntegerArray counts;
+
+    // all pixels that were different in any run, one row after the other
+    private final AtomicLongArray differentPixels;
+
+    private final AtomicInteger iterations = new AtomicInteger();
+
+    private final AtomicInteger pendingIterations = new AtomicInteger();
+
+    // only one thread flushes at a time, a lock instead of a monitor, because the flush reads and writes files
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private TrainingAccumulator(final File maskFile, final int width, final int height, final RectangleMask markerMask,
+                                final double threshold, final int closeWidth, final int closeHeight)
+    {
+        this.maskFile = maskFile;
+        this.width = width;
+        this.height = height;
+        this.markerMask = markerMask;
+        this.threshold = threshold;
+        this.closeWidth = closeWidth;
+        this.closeHeight = closeHeight;
+
+        // with fewer runs a single difference is more than the threshold, small slack for the rounding of the share
+        minIterations = threshold > 0 ? Math.max(1, (int) Math.ceil(1 / threshold - 1e-9)) : 1;
+
+        cellsX = (width + markerMask.getWidth() - 1) / markerMask.getWidth();
+        final int cellsY = (height + markerMask.getHeight() - 1) / markerMask.getHeight();
+        counts = new AtomicIntegerArray(cellsX * cellsY);
+
+        wordsPerRow = (width + 63) >>> 6;
+        differentPixels = new AtomicLongArray(wordsPerRow * height);
+    }
+
+    /**
+     * Returns the accumulator of a mask file. It is created with the given settings, an existing one keeps its
+     * settings, unless the size of the reference image has changed. Then the runs of the old one are flushed first.
+     *
+     * @param maskFile
+     *            the mask file that is trained
+     * @param reference
+     *            the reference image the mask belongs to
+     * @param markerMask
+     *            the size of the cells and of the area that is masked around a difference
+     * @param threshold
+     *            the share of runs [0-1[ a cell has to be different in more often to be masked
+     * @param closeWidth
+     *            width of the structure element the mask is closed with when it is flushed, in blocks of 10 pixels,
+     *            0 to not close it
+     * @param closeHeight
+     *            height of the structure element the mask is closed with when it is flushed, in blocks of 10 pixels,
+     *            0 to not close it
+     * @return the accumulator
+     * @throws IOException
+     *             if the mask file cannot be read while the runs of the old accumulator are flushed
+     */
+    public static TrainingAccumulator get(final File maskFile, final BufferedImage reference,
+                                          final RectangleMask markerMask, final double threshold, final int closeWidth,
+                                          final int closeHeight) throws IOException
+    {
+        final File key = maskFile.getAbsoluteFile();
+
+        TrainingAccumulator accumulator;
+        TrainingAccumulator replaced = null;
+        accumulatorsLock.lock();
+        try
+        {
+            accumulator = accumulators.get(key);
+            if (accumulator == null || accumulator.width != reference.getWidth() || accumulator.height != reference.getHeight())
+            {
+                replaced = accumulator;
+                accumulator = new TrainingAccumulator(maskFile, reference.getWidth(), reference.getHeight(), markerMask,
+                                                      threshold, closeWidth, closeHeight);
+                accumulators.put(key, accumulator);
+            }
+
+            if (!shutdownHookAdded)
+            {
+                shutdownHookAdded = true;
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            flushAll();
+                            ArtifactWriter.flush();
+                        }
+                        catch (final IOException | RuntimeException e)
+                        {
+                            XltLogger.runTimeLogger.error("Failed to write the trained masks", e);
+                        }
+                    }
+                }, "VisualAssertion-TrainingAccumulator-Flush"));
+            }
+        }
+        finally
+        {
+            accumulatorsLock.unlock();
+        }
+
+        // outside of the lock, so the training of other masks goes on meanwhile
+        if (replaced != null)
+        {
+            replaced.flush();
+            replaced.logDiscardedIterations();
+        }
+
+        return accumulator;
+    }
+
+    /**
+     * Flushes the pending runs of all accumulators
+     *
+     * @throws IOException
+     *             if a mask file cannot be read
+     */
+    public static void flushAll() throws IOException
+    {
+        final List<TrainingAccumulator> all;
+        accumulatorsLock.lock();
+        try
+        {
+            all = new ArrayList<>(accumulators.values());
+        }
+        finally
+        {
+            accumulatorsLock.unlock();
+        }
+
+        for (final TrainingAccumulator accumulator : all)
+        {
+            accumulator.flush();
+            accumulator.logDiscardedIterations();
+        }
+    }
+
+    /**
+     * Compares the reference image with another image and counts the cells with differences
+     *
+     * @param reference
+     *            the reference image of the mask
+     * @param image
+     *            the image of this run
+     * @param algorithm
+     *            the algorithm that calculates the differences
+     */
+    public void add(final BufferedImage reference, final BufferedImage image, final ComparisonAlgorithm algorithm)
+    {
+        final DifferenceMap differences = MaskImage.findDifferences(reference, image, algorithm);
+        if (differences == null)
+        {
+            // images of another size can't be compared
+            return;
+        }
+
+        // a flush that runs meanwhile rather sees a run without its differences than differences without their run,
+        // because an area that is masked once stays masked
+        iterations.incrementAndGet();
+
+        // collect the cells of this run first, so each one is counted once
+        final long[] runCells = new long[(counts.length() + 63) >>> 6];
+        final long[] rowPixels = new long[wordsPerRow];
+        final int cellWidth = markerMask.getWidth();
+        final int cellHeight = markerMask.getHeight();
+        final int rows = differences.isEmpty() ? 0 : Math.min(height, differences.getHeight());
+        for (int y = 0; y < rows; y++)
+        {
+            final int cellRow = (y / cellHeight) * cellsX;
+
+            int x = differences.nextSetInRow(y, 0);
+            if (x < 0 || x >= width)
+            {
+                continue;
+            }
+
+            while (x >= 0 && x < width)
+            {
+                final int cell = cellRow + x / cellWidth;
+                runCells[cell >>> 6] |= 1L << cell;
+
+                rowPixels[x >>> 6] |= 1L << x;
+                x = differences.nextSetInRow(y, x + 1);
+            }
+
+            // or the pixels of the row into the shared bitset
+            for (int i = 0; i < wordsPerRow; i++)
+            {
+                if (rowPixels[i] != 0)
+                {
+                    orWord(differentPixels, y * wordsPerRow + i, rowPixels[i]);
+                    rowPixels[i] = 0;
+                }
+            }
+        }
+
+        for (int i = 0; i < runCells.length; i++)
+        {
+            for (long word = runCells[i]; word != 0; word &= word - 1)
+            {
+                counts.incrementAndGet((i << 6) + Long.numberOfTrailingZeros(word));
+            }
+        }
+
+        pendingIterations.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of runs that were added since the last flush
+     *
+     * @return the pending runs
+     */
+    public int getPendingIterations()
+    {
+        return pendingIterations.get();
+    }
+
+    /**
+     * Masks the differences of all cells that differed often enough and writes the mask file. Nothing is written if
+     * there are no pending runs, or if there are too few runs to judge the threshold yet, then the runs stay pending.
+     * Only one thread flushes at a time, runs can still be added meanwhile.
+     *
+     * @throws IOException
+     *             if the mask file cannot be read
+     */
+    public void flush() throws IOException
+    {
+        flushLock.lock();
+        try
+        {
+            final int flushedIterations = pendingIterations.get();
+            if (flushedIterations == 0)
+            {
+                return;
+            }
+            final int allIterations = iterations.get();
+            if (allIterations < minIterations)
+            {
+                return;
+            }
+
+            ArtifactWriter.awaitFile(maskFile);
+            final BitMask mask = maskFile.exists() ? BaselineCache.getMask(maskFile).adaptSize(width, height).copy()
+                                                   : new BitMask(width, height);
+
+            // the differences of the cells that differed often enough are masked like the ones of a single run
+            final DifferenceMap differences = new DifferenceMap(width, height);
+            final int cellWidth = markerMask.getWidth();
+            final int cellHeight = markerMask.getHeight();
+            for (int y = 0; y < height; y++)
+            {
+                final int cellRow = (y / cellHeight) * cellsX;
+                for (int i = 0; i < wordsPerRow; i++)
+                {
+                    for (long word = differentPixels.get(y * wordsPerRow + i); word != 0; word &= word - 1)
+                    {
+                        final int x = (i << 6) + Long.numberOfTrailingZeros(word);
+                        if (counts.get(cellRow + x / cellWidth) > threshold * allIterations)
+                        {
+                            differences.set(x, y);
+                        }
+                    }
+                }
+            }
+            MaskImage.maskDifferences(mask, differences, markerMask);
+
+            final BitMask trainedMask = closeWidth > 0 && closeHeight > 0 ? ImageHelper.closeMaskInBlocks(mask, closeWidth, closeHeight) : mask;
+
+            ArtifactWriter.write(trainedMask.toImage(ImageHelper.BLACK.getRGB(), ImageHelper.WHITE_TRANSPARENT.getRGB()), maskFile);
+            pendingIterations.addAndGet(-flushedIterations);
+        }
+        finally
+        {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Logs the runs that could not be flushed because there were too few of them
+     */
+    private void logDiscardedIterations()
+    {
+        final int pending = pendingIterations.get();
+        if (pending > 0)
+        {
+            XltLogger.runTimeLogger.warn(pending + " training runs of " + maskFile + " were not written, at least " + minIterations
+                                         + " runs are needed for a threshold of " + threshold);
+        }
+    }
+
+    private static void orWord(final AtomicLongArray words, final int index, final long bits)
+    {
+        long current = words.get(index);
+        while ((current | bits) != current && !words.compareAndSet(index, current, current | bits))
+        {
+            current = words.get(index);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package test.com.xceptance.xlt.visual.element;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.xceptance.xlt.visualassertion.util.ElementRegion;
+
+import test.com.xceptance.xlt.visual.ImageTest;
+
+public class TElementRegion extends ImageTest
+{
+    /**
+     * Test that a scrolled page doesn't move the element on a screenshot of the viewport
+     */
+    @Test
+    public void viewportScreenshotOfScrolledPage()
+    {
+        final ElementRegion element = new ElementRegion(10, 20, 30, 40, 0, 500, 600, 1);
+        Assert.assertEquals(new Rectangle(10, 20, 30, 40), element.toScreenshotRegion(800, 600));
+    }
+
+    /**
+     * Test that the scroll position is added if the screenshot shows the whole page
+     */
+    @Test
+    public void pageScreenshotOfScrolledPage()
+    {
+        final ElementRegion element = new ElementRegion(10, 20, 30, 40, 0, 500, 600, 1);
+        Assert.assertEquals(new Rectangle(10, 520, 30, 40), element.toScreenshotRegion(800, 2000));
+    }
+
+    /**
+     * Test that CSS pixels are scaled to device pixels on HiDPI screens
+     */
+    @Test
+    public void deviceScaleFactor()
+    {
+        final ElementRegion element = new ElementRegion(10.5, 20, 30, 40, 0, 0, 600, 2);
+        Assert.assertEquals(new Rectangle(21, 40, 60, 80), element.toScreenshotRegion(1600, 1200));
+
+        final ElementRegion wholePage = new ElementRegion(10, 20, 30, 40, 0, 100, 600, 2);
+        Assert.assertEquals(new Rectangle(20, 240, 60, 80), wholePage.toScreenshotRegion(1600, 3000));
+    }
+
+    /**
+     * Test that partly covered device pixels at the edges belong to the element
+     */
+    @Test
+    public void fractionalScaleFactor()
+    {
+        final ElementRegion element = new ElementRegion(10.3, 10, 30, 10, 0, 0, 600, 1.5);
+        Assert.assertEquals(new Rectangle(15, 15, 46, 15), element.toScreenshotRegion(1200, 900));
+    }
+
+    /**
+     * Test that the region is cut to the screenshot and empty if the element is outside
+     */
+    @Test
+    public void cutToScreenshot()
+    {
+        Assert.assertEquals(new Rectangle(0, 0, 30, 30),
+                            new ElementRegion(-10, -10, 40, 40, 0, 0, 600, 1).toScreenshotRegion(800, 600));
+        Assert.assertEquals(new Rectangle(790, 590, 10, 10),
+                            new ElementRegion(790, 590, 40, 40, 0, 0, 600, 1).toScreenshotRegion(800, 600));
+        Assert.assertTrue(new ElementRegion(10, 700, 30, 40, 0, 0, 600, 1).toScreenshotRegion(800, 600).isEmpty());
+        Assert.assertTrue(new ElementRegion(10, 20, 0, 0, 0, 0, 600, 1).toScreenshotRegion(800, 600).isEmpty());
+    }
+
+    /**
+     * Test that the numbers of the script are read, whether the driver returns them as whole or decimal numbers
+     */
+    @Test
+    public void fromScriptResult()
+    {
+        final ElementRegion element = ElementRegion.fromScriptResult(Arrays.<Object>asList(10L, 20.5, 30L, 40L, 0L, 500L,
+                                                                                           600L, 2L));
+        Assert.assertEquals(new Rectangle(20, 41, 60, 80), element.toScreenshotRegion(1600, 1200));
+    }
+
+    /**
+     * Test that a missing result is reported
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void fromMissingScriptResult()
+    {
+        ElementRegion.fromScriptResult(null);
+    }
+}
@@ -1,12 +1,20 @@
 package test.com.xceptance.xlt.visual.fuzzy;
 
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.Random;
 
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.xceptance.xlt.visualassertion.algorithm.ComparisonAlgorithm;
 import com.xceptance.xlt.visualassertion.algorithm.PixelFuzzy;
+import com.xceptance.xlt.visualassertion.util.BitMask;
+import com.xceptance.xlt.visualassertion.util.ComparisonPool;
+import com.xceptance.xlt.visualassertion.util.ImageComparison;
 import com.xceptance.xlt.visualassertion.util.RectangleMask;
 
 import test.com.xceptance.xlt.visual.ImageTest;
@@ -204,4 +212,145 @@ public class TFuzzy extends ImageTest
         T.match("fuzzy/white-10x10.png").to("fuzzy/white-10x10-1pixel.png").isEqual();
 
     }
+
+    /**
+     * Test that the smaller blocks at the right and bottom border are checked as well. The image is 15x15, so the
+     * bottom right block has 5x5 pixels and with 0.1 tolerates 2 differences.
+     */
+    @Test
+    public void remainderBlock()
+    {
+        final BufferedImage reference = createPlainImage(15, 15, Color.WHITE);
+
+        // 2 of 25 pixels diff
+        final BufferedImage twoPixels = createPlainImage(15, 15, Color.WHITE);
+        twoPixels.setRGB(12, 12, Color.BLACK.getRGB());
+        twoPixels.setRGB(14, 14, Color.BLACK.getRGB());
+        T.match(reference).to(twoPixels).isEqual();
+
+        // 3 of 25 pixels diff
+        final BufferedImage threePixels = createPlainImage(15, 15, Color.WHITE);
+        threePixels.setRGB(12, 12, Color.BLACK.getRGB());
+        threePixels.setRGB(13, 14, Color.BLACK.getRGB());
+        threePixels.setRGB(14, 14, Color.BLACK.getRGB());
+        T.match(reference).to(threePixels).isNotEqual();
+    }
+
+    /**
+     * Test overlapping blocks. 12 pixels straddle the border between two blocks, so each side by side block only sees
+     * 6 of them, while the block halfway in between sees all 12.
+     */
+    @Test
+    public void overlappingBlocks()
+    {
+        final BufferedImage reference = createPlainImage(20, 10, Color.WHITE);
+        final BufferedImage straddling = createPlainImage(20, 10, Color.WHITE);
+        for (int y = 3; y < 6; y++)
+        {
+            for (int x = 8; x < 12; x++)
+            {
+                straddling.setRGB(x, y, Color.BLACK.getRGB());
+            }
+        }
+
+        T.match(reference).to(straddling).isEqual();
+
+        T = new TestCompare(new PixelFuzzy(0.1, 0.1, 10, 5), m, mX, mY);
+        T.match(reference).to(straddling).isNotEqual();
+    }
+
+    /**
+     * Test that a comparison spread over the pool finds the same differences as one on the calling thread. The image
+     * is large enough to be split into four tiles, and the failing blocks lie in different tiles and on their borders.
+     */
+    @Test
+    public void poolMatchesSerial()
+    {
+        final BufferedImage reference = createPlainImage(512, 512, Color.WHITE);
+        final BufferedImage changed = createPlainImage(512, 512, Color.WHITE);
+
+        // sparse noise that is tolerated and some dense spots that are not
+        final Random random = new Random(4);
+        for (int i = 0; i < 3000; i++)
+        {
+            changed.setRGB(random.nextInt(512), random.nextInt(512), Color.BLACK.getRGB());
+        }
+        for (final int spotY : new int[] { 20, 125, 250, 380, 500 })
+        {
+            for (int y = spotY; y < Math.min(512, spotY + 12); y++)
+            {
+                for (int x = spotY; x < spotY + 12; x++)
+                {
+                    changed.setRGB(x, y, Color.BLACK.getRGB());
+                }
+            }
+        }
+
+        final BitMask mask = new BitMask(512, 512);
+        try
+        {
+            ComparisonPool.setParallelism(1);
+            final ImageComparison serial = new ImageComparison(reference);
+            Assert.assertFalse(serial.isEqual(changed, mask, a));
+
+            ComparisonPool.setParallelism(4);
+            final ImageComparison pooled = new ImageComparison(reference);
+            Assert.assertFalse(pooled.isEqual(changed, mask, a));
+
+            Assert.assertTrue(imageEqual(serial.getDifferenceImage(), pooled.getDifferenceImage()));
+        }
+        finally
+        {
+            ComparisonPool.setParallelism(1);
+        }
+    }
+
+    /**
+     * Test that fail fast finds a failing block in any tile of a pooled comparison, and that tolerated differences in
+     * all tiles don't fail it
+     */
+    @Test
+    public void poolFailFast()
+    {
+        final BufferedImage reference = createPlainImage(512, 512, Color.WHITE);
+        final BufferedImage tolerated = createPlainImage(512, 512, Color.WHITE);
+        for (int y = 5; y < 512; y += 10)
+        {
+            tolerated.setRGB(y, y, Color.BLACK.getRGB());
+        }
+
+        // one failing block in the last tile only
+        final BufferedImage lastTile = createPlainImage(512, 512, Color.WHITE);
+        for (int y = 502; y < 506; y++)
+        {
+            for (int x = 302; x < 306; x++)
+            {
+                lastTile.setRGB(x, y, Color.BLACK.getRGB());
+            }
+        }
+
+        final BitMask mask = new BitMask(512, 512);
+        try
+        {
+            ComparisonPool.setParallelism(4);
+            Assert.assertTrue(new ImageComparison(reference, true).isEqual(tolerated, mask, a));
+            Assert.assertFalse(new ImageComparison(reference, true).isEqual(lastTile, mask, a));
+        }
+        finally
+        {
+            ComparisonPool.setParallelism(1);
+        }
+    }
+
+    private BufferedImage createPlainImage(final int width, final int height, final Color color)
+    {
+        final BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        final Graphics graphics = img.getGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+
+        return img;
+    }
 }
@@ -0,0 +1,63 @@
+package test.com.xceptance.xlt.visual.hash;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.xceptance.xlt.visualassertion.util.BitMask;
+import com.xceptance.xlt.visualassertion.util.PixelHash;
+
+import test.com.xceptance.xlt.visual.ImageTest;
+
+public class TPixelHash extends ImageTest
+{
+    /**
+     * Test that the same pixels give the same hash, independent of the image type
+     *
+     * @throws IOException
+     */
+    @Test
+    public void samePixels() throws IOException
+    {
+        final BufferedImage img1 = createTestImage2DGradient(Color.BLACK, Color.RED);
+        final BufferedImage img2 = new BufferedImage(img1.getWidth(), img1.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        img2.getGraphics().drawImage(img1, 0, 0, null);
+
+        Assert.assertEquals(PixelHash.compute(img1, null), PixelHash.compute(img2, null));
+    }
+
+    /**
+     * Test that one changed pixel changes the hash, unless it is masked
+     *
+     * @throws IOException
+     */
+    @Test
+    public void onePixelDifference() throws IOException
+    {
+        final BufferedImage img1 = createTestImage2DGradient(Color.BLACK, Color.RED);
+        final BufferedImage img2 = createTestImage2DGradient(Color.BLACK, Color.RED);
+        img2.setRGB(17, 23, img2.getRGB(17, 23) ^ 1);
+
+        Assert.assertFalse(PixelHash.compute(img1, null).equals(PixelHash.compute(img2, null)));
+
+        final BitMask mask = new BitMask(img1.getWidth(), img1.getHeight());
+        mask.set(17, 23);
+
+        Assert.assertEquals(PixelHash.compute(img1, mask), PixelHash.compute(img2, mask));
+    }
+
+    /**
+     * Test that images of different sizes with the same pixels don't share a hash
+     */
+    @Test
+    public void differentSize()
+    {
+        final BufferedImage img1 = new BufferedImage(20, 10, BufferedImage.TYPE_INT_ARGB);
+        final BufferedImage img2 = new BufferedImage(10, 20, BufferedImage.TYPE_INT_ARGB);
+
+        Assert.assertFalse(PixelHash.compute(img1, null).equals(PixelHash.compute(img2, null)));
+    }
+}
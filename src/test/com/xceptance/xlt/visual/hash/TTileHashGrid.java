@@ -0,0 +1,53 @@
+package test.com.xceptance.xlt.visual.hash;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.xceptance.xlt.visualassertion.util.BitMask;
+import com.xceptance.xlt.visualassertion.util.TileHashGrid;
+
+import test.com.xceptance.xlt.visual.ImageTest;
+
+public class TTileHashGrid extends ImageTest
+{
+    /**
+     * Test that only the tile with the changed pixel stays unmasked
+     *
+     * @throws IOException
+     */
+    @Test
+    public void oneChangedTile() throws IOException
+    {
+        final BufferedImage img1 = createTestImage2DGradient(Color.BLACK, Color.RED);
+        final BufferedImage img2 = createTestImage2DGradient(Color.BLACK, Color.RED);
+        img2.setRGB(40, 70, img2.getRGB(40, 70) ^ 1);
+
+        final BitMask mask = TileHashGrid.compute(img1, null).maskEqualTiles(null, TileHashGrid.compute(img2, null));
+
+        final int size = TileHashGrid.TILE_SIZE;
+        for (int y = 0; y < img1.getHeight(); y++)
+        {
+            for (int x = 0; x < img1.getWidth(); x++)
+            {
+                final boolean changedTile = x / size == 40 / size && y / size == 70 / size;
+                Assert.assertEquals(x + "," + y, !changedTile, mask.get(x, y));
+            }
+        }
+    }
+
+    /**
+     * Test that nothing is masked if the sizes differ
+     */
+    @Test
+    public void differentSize()
+    {
+        final BufferedImage img1 = new BufferedImage(64, 32, BufferedImage.TYPE_INT_ARGB);
+        final BufferedImage img2 = new BufferedImage(32, 64, BufferedImage.TYPE_INT_ARGB);
+
+        Assert.assertNull(TileHashGrid.compute(img1, null).maskEqualTiles(null, TileHashGrid.compute(img2, null)));
+    }
+}
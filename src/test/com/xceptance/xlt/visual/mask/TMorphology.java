@@ -0,0 +1,175 @@
+package test.com.xceptance.xlt.visual.mask;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.xceptance.xlt.visualassertion.util.BitMask;
+import com.xceptance.xlt.visualassertion.util.ImageHelper;
+
+import test.com.xceptance.xlt.visual.ImageTest;
+
+public class TMorphology extends ImageTest
+{
+    // widths around the word size of the mask
+    private final int[] widths = { 1, 5, 63, 64, 65, 127, 130, 200 };
+
+    // even and odd sizes, some larger than a word
+    private final int[] elementSizes = { 1, 2, 3, 4, 7, 10, 64, 65, 66, 129 };
+
+    /**
+     * Test that the erosion matches a pixel by pixel erosion on random masks
+     */
+    @Test
+    public void erodeMatchesBruteForce()
+    {
+        final Random random = new Random(10);
+        for (final int width : widths)
+        {
+            for (final int elementSize : elementSizes)
+            {
+                final BitMask mask = createRandomMask(random, width, 1 + random.nextInt(150), 0.9);
+                final int elementHeight = elementSizes[random.nextInt(elementSizes.length)];
+
+                assertMaskEquals(width + "x" + mask.getHeight() + " element " + elementSize + "x" + elementHeight,
+                                 bruteForce(mask, elementSize, elementHeight, true),
+                                 Morphology.erode(mask, elementSize, elementHeight));
+            }
+        }
+    }
+
+    /**
+     * Test that the dilation matches a pixel by pixel dilation on random masks
+     */
+    @Test
+    public void dilateMatchesBruteForce()
+    {
+        final Random random = new Random(11);
+        for (final int width : widths)
+        {
+            for (final int elementSize : elementSizes)
+            {
+                final BitMask mask = createRandomMask(random, width, 1 + random.nextInt(150), 0.02);
+                final int elementHeight = elementSizes[random.nextInt(elementSizes.length)];
+
+                assertMaskEquals(width + "x" + mask.getHeight() + " element " + elementSize + "x" + elementHeight,
+                                 bruteForce(mask, elementSize, elementHeight, false),
+                                 Morphology.dilate(mask, elementSize, elementHeight));
+            }
+        }
+    }
+
+    /**
+     * Test that closing is a dilation followed by an erosion
+     */
+    @Test
+    public void closeMatchesBruteForce()
+    {
+        final Random random = new Random(12);
+        for (final int width : widths)
+        {
+            for (final int elementSize : elementSizes)
+            {
+                final BitMask mask = createRandomMask(random, width, 1 + random.nextInt(150), 0.05);
+                final int elementHeight = elementSizes[random.nextInt(elementSizes.length)];
+
+                final BitMask expected = bruteForce(bruteForce(mask, elementSize, elementHeight, false), elementSize,
+                                                    elementHeight, true);
+                assertMaskEquals(width + "x" + mask.getHeight() + " element " + elementSize + "x" + elementHeight, expected,
+                                 Morphology.close(mask, elementSize, elementHeight));
+            }
+        }
+    }
+
+    private BitMask createRandomMask(final Random random, final int width, final int height, final double density)
+    {
+        final BitMask mask = new BitMask(width, height);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                if (random.nextDouble() < density)
+                {
+                    mask.set(x, y);
+                }
+            }
+        }
+
+        return mask;
+    }
+
+    /**
+     * Erodes or dilates pixel by pixel. The origin is the middle of the element, pixels outside of the mask don't
+     * prevent the element from fitting.
+     */
+    private BitMask bruteForce(final BitMask mask, final int elementWidth, final int elementHeight, final boolean erode)
+    {
+        final int radiusX = elementWidth / 2;
+        final int radiusY = elementHeight / 2;
+
+        final BitMask result = new BitMask(mask.getWidth(), mask.getHeight());
+        for (int y = 0; y < mask.getHeight(); y++)
+        {
+            for (int x = 0; x < mask.getWidth(); x++)
+            {
+                boolean set = erode;
+                for (int yy = Math.max(0, y - radiusY); yy <= Math.min(mask.getHeight() - 1, y + radiusY); yy++)
+                {
+                    for (int xx = Math.max(0, x - radiusX); xx <= Math.min(mask.getWidth() - 1, x + radiusX); xx++)
+                    {
+                        if (erode && !mask.get(xx, yy))
+                        {
+                            set = false;
+                        }
+                        else if (!erode && mask.get(xx, yy))
+                        {
+                            set = true;
+                        }
+                    }
+                }
+
+                if (set)
+                {
+                    result.set(x, y);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private void assertMaskEquals(final String message, final BitMask expected, final BitMask actual)
+    {
+        Assert.assertEquals(message, expected.getWidth(), actual.getWidth());
+        Assert.assertEquals(message, expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++)
+        {
+            for (int x = 0; x < expected.getWidth(); x++)
+            {
+                Assert.assertEquals(message + " at " + x + "," + y, expected.get(x, y), actual.get(x, y));
+            }
+        }
+    }
+
+    /**
+     * Gives the test access to the morphology of the image helper
+     */
+    private static class Morphology extends ImageHelper
+    {
+        static BitMask erode(final BitMask mask, final int elementWidth, final int elementHeight)
+        {
+            return erodeMask(mask, elementWidth, elementHeight);
+        }
+
+        static BitMask dilate(final BitMask mask, final int elementWidth, final int elementHeight)
+        {
+            return dilateMask(mask, elementWidth, elementHeight);
+        }
+
+        static BitMask close(final BitMask mask, final int elementWidth, final int elementHeight)
+        {
+            return closeMask(mask, elementWidth, elementHeight);
+        }
+    }
+}
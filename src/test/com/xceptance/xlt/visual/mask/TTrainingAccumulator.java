@@ -0,0 +1,270 @@
+package test.com.xceptance.xlt.visual.mask;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.xceptance.xlt.visualassertion.algorithm.ExactMatch;
+import com.xceptance.xlt.visualassertion.util.BitMask;
+import com.xceptance.xlt.visualassertion.util.MaskImage;
+import com.xceptance.xlt.visualassertion.util.RectangleMask;
+import com.xceptance.xlt.visualassertion.util.TrainingAccumulator;
+
+import test.com.xceptance.xlt.visual.ImageTest;
+
+public class TTrainingAccumulator extends ImageTest
+{
+    private final RectangleMask markerMask = new RectangleMask(10, 8);
+
+    /**
+     * Test that without a threshold the accumulated mask is the same as the one trained run by run
+     */
+    @Test
+    public void sameMaskAsTrainedRunByRun() throws IOException
+    {
+        final File maskFile = createMaskFile();
+        final BufferedImage reference = createImage(203, 151);
+        final TrainingAccumulator accumulator = TrainingAccumulator.get(maskFile, reference, markerMask, 0, 0, 0);
+        final MaskImage expected = new MaskImage(reference);
+
+        final Random random = new Random(20);
+        for (int run = 0; run < 5; run++)
+        {
+            final BufferedImage image = createImage(reference.getWidth(), reference.getHeight());
+            for (int i = 0; i < 15; i++)
+            {
+                // single pixels and short runs, some at the edges
+                final int x = random.nextInt(reference.getWidth());
+                final int y = random.nextInt(reference.getHeight());
+                for (int dx = 0; dx < 1 + random.nextInt(4) && x + dx < image.getWidth(); dx++)
+                {
+                    image.setRGB(x + dx, y, Color.BLACK.getRGB());
+                }
+            }
+            image.setRGB(0, 0, Color.BLACK.getRGB());
+            image.setRGB(reference.getWidth() - 1, reference.getHeight() - 1, Color.BLACK.getRGB());
+
+            accumulator.add(reference, image, new ExactMatch());
+            expected.train(image, new ExactMatch(), markerMask);
+        }
+        accumulator.flush();
+
+        Assert.assertEquals(0, accumulator.getPendingIterations());
+        assertMaskEquals(expected.getBitMask(), loadMask(maskFile));
+    }
+
+    /**
+     * Test that nothing is written before there are enough runs to judge the threshold, so a single difference
+     * doesn't mask its area
+     */
+    @Test
+    public void thresholdNeedsEnoughRuns() throws IOException
+    {
+        final File maskFile = createMaskFile();
+        final BufferedImage reference = createImage(100, 80);
+        final TrainingAccumulator accumulator = TrainingAccumulator.get(maskFile, reference, markerMask, 0.25, 0, 0);
+
+        // a one-off difference and one that shows up in every second run
+        final BufferedImage oneOff = createImage(100, 80);
+        oneOff.setRGB(15, 15, Color.BLACK.getRGB());
+        oneOff.setRGB(55, 45, Color.BLACK.getRGB());
+        final BufferedImage frequent = createImage(100, 80);
+        frequent.setRGB(55, 45, Color.BLACK.getRGB());
+        final BufferedImage unchanged = createImage(100, 80);
+
+        accumulator.add(reference, oneOff, new ExactMatch());
+        accumulator.add(reference, unchanged, new ExactMatch());
+        accumulator.add(reference, frequent, new ExactMatch());
+        accumulator.flush();
+
+        // 0.25 needs 4 runs
+        Assert.assertFalse(maskFile.exists());
+        Assert.assertEquals(3, accumulator.getPendingIterations());
+
+        accumulator.add(reference, unchanged, new ExactMatch());
+        accumulator.flush();
+        Assert.assertEquals(0, accumulator.getPendingIterations());
+
+        final BitMask expected = new BitMask(100, 80);
+        expected.fillRect(50, 41, 10, 8);
+        assertMaskEquals(expected, loadMask(maskFile));
+    }
+
+    /**
+     * Test that the runs of an accumulator are written before it is replaced for a reference of another size
+     */
+    @Test
+    public void sizeChangeFlushesPendingRuns() throws IOException
+    {
+        final File maskFile = createMaskFile();
+        final BufferedImage reference = createImage(100, 80);
+        final TrainingAccumulator accumulator = TrainingAccumulator.get(maskFile, reference, markerMask, 0, 0, 0);
+
+        final BufferedImage image = createImage(100, 80);
+        image.setRGB(30, 20, Color.BLACK.getRGB());
+        accumulator.add(reference, image, new ExactMatch());
+
+        final TrainingAccumulator resized = TrainingAccumulator.get(maskFile, createImage(120, 80), markerMask, 0, 0, 0);
+        Assert.assertNotSame(accumulator, resized);
+        Assert.assertEquals(0, accumulator.getPendingIterations());
+
+        final BitMask expected = new BitMask(100, 80);
+        expected.fillRect(25, 16, 10, 8);
+        assertMaskEquals(expected, loadMask(maskFile));
+    }
+
+    /**
+     * Test that runs added by many threads while other threads flush all end up in the mask, and that no run stays
+     * pending or is subtracted twice
+     */
+    @Test
+    public void concurrentRunsAndFlushes() throws Exception
+    {
+        final File maskFile = createMaskFile();
+        final BufferedImage reference = createImage(256, 200);
+        final TrainingAccumulator accumulator = TrainingAccumulator.get(maskFile, reference, markerMask, 0, 0, 0);
+
+        // every thread has its own differences, many of them share cells and bitset words with other threads
+        final int threadCount = 8;
+        final int runsPerThread = 25;
+        final BufferedImage[][] images = new BufferedImage[threadCount][runsPerThread];
+        final MaskImage expected = new MaskImage(reference);
+        final Random random = new Random(21);
+        for (int t = 0; t < threadCount; t++)
+        {
+            for (int run = 0; run < runsPerThread; run++)
+            {
+                final BufferedImage image = createImage(reference.getWidth(), reference.getHeight());
+                for (int i = 0; i < 3; i++)
+                {
+                    image.setRGB(random.nextInt(reference.getWidth()), random.nextInt(reference.getHeight()),
+                                 Color.BLACK.getRGB());
+                }
+                images[t][run] = image;
+                expected.train(image, new ExactMatch(), markerMask);
+            }
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger runningAdders = new AtomicInteger(threadCount);
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++)
+        {
+            final BufferedImage[] threadImages = images[t];
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (final BufferedImage image : threadImages)
+                        {
+                            accumulator.add(reference, image, new ExactMatch());
+                        }
+                    }
+                    catch (final Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                    finally
+                    {
+                        runningAdders.decrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (int f = 0; f < 2; f++)
+        {
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        while (runningAdders.get() > 0)
+                        {
+                            accumulator.flush();
+                        }
+                    }
+                    catch (final Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        for (final Thread thread : threads)
+        {
+            thread.start();
+        }
+        start.countDown();
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        Assert.assertNull(failure.get());
+
+        accumulator.flush();
+
+        Assert.assertEquals(0, accumulator.getPendingIterations());
+        assertMaskEquals(expected.getBitMask(), loadMask(maskFile));
+    }
+
+    private File createMaskFile() throws IOException
+    {
+        final File maskFile = File.createTempFile("mask", ".png");
+        maskFile.delete();
+        maskFile.deleteOnExit();
+        return maskFile;
+    }
+
+    private BufferedImage createImage(final int width, final int height)
+    {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                image.setRGB(x, y, Color.WHITE.getRGB());
+            }
+        }
+        return image;
+    }
+
+    private BitMask loadMask(final File maskFile) throws IOException
+    {
+        return BitMask.fromImage(ImageIO.read(maskFile), Color.BLACK.getRGB());
+    }
+
+    private void assertMaskEquals(final BitMask expected, final BitMask actual)
+    {
+        Assert.assertEquals(expected.getWidth(), actual.getWidth());
+        Assert.assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++)
+        {
+            for (int x = 0; x < expected.getWidth(); x++)
+            {
+                Assert.assertEquals("at " + x + "," + y, expected.get(x, y), actual.get(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package test.com.xceptance.xlt.visual.png;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.xceptance.xlt.visualassertion.util.PngEncoder;
+import com.xceptance.xlt.visualassertion.util.PngEncoder.Filter;
+
+import test.com.xceptance.xlt.visual.ImageTest;
+
+public class TPngEncoder extends ImageTest
+{
+    /**
+     * Test a mask, black and transparent white -> 1 bit palette with transparency
+     *
+     * @throws IOException
+     */
+    @Test
+    public void twoColors() throws IOException
+    {
+        final BufferedImage img = createColoredImage(37, 21, 2, true);
+        assertRoundTrip(img);
+    }
+
+    /**
+     * Test a difference image with a few greys -> 4 bit palette
+     *
+     * @throws IOException
+     */
+    @Test
+    public void someColors() throws IOException
+    {
+        final BufferedImage img = createColoredImage(50, 30, 11, false);
+        assertRoundTrip(img);
+    }
+
+    /**
+     * Test 256 colors with transparency -> 8 bit palette
+     *
+     * @throws IOException
+     */
+    @Test
+    public void paletteLimit() throws IOException
+    {
+        final BufferedImage img = createColoredImage(64, 64, 256, true);
+        assertRoundTrip(img);
+    }
+
+    /**
+     * Test many colors -> RGB
+     *
+     * @throws IOException
+     */
+    @Test
+    public void trueColor() throws IOException
+    {
+        final BufferedImage img = createTestImage2DGradient(Color.BLACK, Color.RED);
+        assertRoundTrip(img);
+    }
+
+    /**
+     * Test many colors with transparency -> RGBA
+     *
+     * @throws IOException
+     */
+    @Test
+    public void trueColorAlpha() throws IOException
+    {
+        final BufferedImage gradient = createTestImage2DGradient(Color.BLACK, Color.BLUE);
+        final BufferedImage img = new BufferedImage(gradient.getWidth(), gradient.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < img.getWidth(); x++)
+        {
+            for (int y = 0; y < img.getHeight(); y++)
+            {
+                img.setRGB(x, y, (gradient.getRGB(x, y) & 0xFFFFFF) | ((x + y) & 0xFF) << 24);
+            }
+        }
+        assertRoundTrip(img);
+    }
+
+    private void assertRoundTrip(final BufferedImage img) throws IOException
+    {
+        for (final Filter filter : Filter.values())
+        {
+            for (final int level : new int[] { 0, 1, 9 })
+            {
+                final byte[] png = new PngEncoder(level, filter).encode(img);
+                final BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+
+                Assert.assertEquals(img.getWidth(), decoded.getWidth());
+                Assert.assertEquals(img.getHeight(), decoded.getHeight());
+                Assert.assertTrue(filter + " " + level, imageEqual(img, decoded));
+            }
+        }
+    }
+
+    private BufferedImage createColoredImage(final int width, final int height, final int colorCount, final boolean transparent)
+    {
+        final BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < width; x++)
+        {
+            for (int y = 0; y < height; y++)
+            {
+                final int i = (x * 7 + y * 13) % colorCount;
+                final int alpha = transparent && i % 2 == 0 ? 0 : 255;
+                img.setRGB(x, y, new Color(i, i, 255 - i, alpha).getRGB());
+            }
+        }
+        return img;
+    }
+}
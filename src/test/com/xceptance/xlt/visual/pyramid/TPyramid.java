@@ -0,0 +1,63 @@
+package test.com.xceptance.xlt.visual.pyramid;
+
+import org.junit.Test;
+
+import test.com.xceptance.xlt.visual.ImageTest;
+import test.com.xceptance.xlt.visual.TestCompare;
+
+import com.xceptance.xlt.visualassertion.algorithm.ColorFuzzy;
+import com.xceptance.xlt.visualassertion.algorithm.PixelFuzzy;
+import com.xceptance.xlt.visualassertion.algorithm.Pyramid;
+import com.xceptance.xlt.visualassertion.util.RectangleMask;
+
+public class TPyramid extends ImageTest
+{
+    // how should a difference maSked during training
+    RectangleMask m = new RectangleMask(10, 10);
+
+    // how difference should maRked in difference file
+    int mX = 10;
+
+    int mY = 10;
+
+    /**
+     * Test color fuzzy, no difference
+     */
+    @Test
+    public void samePhoto()
+    {
+        final TestCompare T = new TestCompare(new Pyramid(new ColorFuzzy(0.1)), m, mX, mY);
+        T.match("colorfuzzy/photo.png").to("colorfuzzy/photo.png").isEqual();
+    }
+
+    /**
+     * Test color fuzzy, one pixel diff is found and marked like without the pyramid
+     */
+    @Test
+    public void onePixelDifferenceBlack()
+    {
+        final TestCompare T = new TestCompare(new Pyramid(new ColorFuzzy(0.1)), m, mX, mY);
+        T.match("colorfuzzy/white-35x35.png").to("colorfuzzy/white-35x35-1pixel-1x1.png").isNotEqual()
+        .hasMarking("colorfuzzy/onePixelDifferenceBlack.png");
+    }
+
+    /**
+     * Test fuzzy, 10 of 100 pixel diff is tolerated
+     */
+    @Test
+    public void fuzzyUnderLimit()
+    {
+        final TestCompare T = new TestCompare(new Pyramid(new PixelFuzzy(0.1, 0.1, 10)), m, mX, mY);
+        T.match("fuzzy/white-10x10.png").to("fuzzy/white-10x10-10diff.png").isEqual();
+    }
+
+    /**
+     * Test fuzzy, 11 of 100 pixel diff is found and marked like without the pyramid
+     */
+    @Test
+    public void fuzzyOverLimit()
+    {
+        final TestCompare T = new TestCompare(new Pyramid(new PixelFuzzy(0.1, 0.1, 10)), m, mX, mY);
+        T.match("fuzzy/white-10x10.png").to("fuzzy/white-10x10-11diff.png").isNotEqual().hasMarking("fuzzy/diffPixel_01_11of100.png");
+    }
+}